@@ -43,15 +43,27 @@ public class Block {
      */
     private long nonce;
 
+    /**
+     * 区块高度，创世区块为0
+     */
+    private long height;
+
+    /**
+     * 区块中交易的merkle根，旧版本的区块中没有该字段
+     */
+    private byte[] merkleRoot;
+
 
     /**
      *
      * @param preHash
      * @param transactions
+     * @param height
      * @return
      */
-    public static Block createNewBlock(String preHash, Transaction[] transactions) {
-        Block block = new Block("", preHash, transactions, Instant.now().getEpochSecond(),0);
+    public static Block createNewBlock(String preHash, Transaction[] transactions, long height) {
+        Block block = new Block("", preHash, transactions, Instant.now().getEpochSecond(), 0, height, null);
+        block.setMerkleRoot(block.hashTransaction());
         ProofOfWork pow = ProofOfWork.newProofOfWork(block);
         PowResult powResult = pow.run();
         block.setHash(powResult.getHash());
@@ -75,7 +87,7 @@ public class Block {
 
 
     public static Block newGenesisBlock(Transaction coinbase) {
-        return Block.createNewBlock("", new Transaction[]{coinbase});
+        return Block.createNewBlock("", new Transaction[]{coinbase}, 0);
     }
 
     /**
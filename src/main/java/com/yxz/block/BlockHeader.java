@@ -0,0 +1,118 @@
+package com.yxz.block;
+
+import com.yxz.util.ByteUtil;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 区块头，工作量证明计算的对象
+ * <p>
+ * 序列化为固定长度的二进制数据：前一区块Hash(32) + merkle根(32) + 时间戳(8) + 难度目标位(4) + nonce(8)，
+ * 创世区块的前一区块Hash以32个0字节表示
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BlockHeader {
+
+    /**
+     * 区块头序列化后的长度
+     */
+    public static final int HEADER_LENGTH = 32 + 32 + 8 + 4 + 8;
+
+    /**
+     * 前一区块的哈希值
+     */
+    private String preHash;
+
+    /**
+     * 区块中交易的merkle根
+     */
+    private byte[] merkleRoot;
+
+    /**
+     * 区块时间戳
+     */
+    private long timeStamp;
+
+    /**
+     * 难度目标位
+     */
+    private int bits;
+
+    /**
+     * 随机数
+     */
+    private long nonce;
+
+    /**
+     * 根据区块创建区块头，区块中没有记录merkle根时根据交易计算
+     *
+     * @param block 区块
+     * @param bits  难度目标位
+     * @return
+     */
+    public static BlockHeader fromBlock(Block block, int bits) {
+        byte[] merkleRoot = block.getMerkleRoot() != null ? block.getMerkleRoot() : block.hashTransaction();
+        return new BlockHeader(block.getPreHash(), merkleRoot, block.getTimeStamp(), bits, block.getNonce());
+    }
+
+    /**
+     * 序列化区块头
+     *
+     * @return
+     */
+    public byte[] toBytes() {
+        return this.toBytes(this.nonce);
+    }
+
+    /**
+     * 使用指定的nonce序列化区块头，不修改当前区块头
+     *
+     * @param nonce
+     * @return
+     */
+    public byte[] toBytes(long nonce) {
+        return ByteBuffer.allocate(HEADER_LENGTH)
+                .put(preHashBytes(this.preHash))
+                .put(this.merkleRoot)
+                .putLong(this.timeStamp)
+                .putInt(this.bits)
+                .putLong(nonce)
+                .array();
+    }
+
+    /**
+     * 使用指定的nonce计算区块头的Hash值
+     *
+     * @param nonce
+     * @return 十六进制表示的Hash值
+     */
+    public String hash(long nonce) {
+        return DigestUtils.sha256Hex(this.toBytes(nonce));
+    }
+
+    /**
+     * 前一区块Hash的二进制表示
+     *
+     * @param preHash
+     * @return
+     */
+    private static byte[] preHashBytes(String preHash) {
+        if (preHash == null || preHash.isEmpty()) {
+            return ByteUtil.EMPTY_BYTES;
+        }
+        try {
+            return Hex.decodeHex(preHash);
+        } catch (DecoderException e) {
+            System.out.println("Fail to serialize block header ! preHash=" + preHash);
+            throw new RuntimeException("Fail to serialize block header ! ", e);
+        }
+    }
+}
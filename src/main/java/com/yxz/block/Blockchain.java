@@ -1,7 +1,10 @@
 package com.yxz.block;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.yxz.consensus.ProofOfWork;
+import com.yxz.store.BlockConnectBatch;
+import com.yxz.store.ChainStore;
 import com.yxz.transaction.*;
 import com.yxz.util.Base58Util;
 import com.yxz.util.LevelDBUtil;
@@ -23,8 +26,50 @@ public class Blockchain {
      */
     private String lastBlockHash;
 
+    /**
+     * 区块链存储
+     */
+    private ChainStore chainStore;
+
     public Blockchain(String lastBlockHash) {
-        this.lastBlockHash = lastBlockHash;;
+        this(LevelDBUtil.getInstance(), lastBlockHash);
+    }
+
+    public Blockchain(ChainStore chainStore, String lastBlockHash) {
+        this.chainStore = chainStore;
+        this.lastBlockHash = lastBlockHash;
+        this.replayChainstate();
+    }
+
+    /**
+     * 开启UTXO缓存时，进程异常退出会丢失缓存中尚未写入的UTXO变更，
+     * 此时磁盘上的UTXO池落后于最新区块，从UTXO池对应的区块之后依次重放到最新区块
+     */
+    private void replayChainstate() {
+        String tipHash = chainStore.getLastBlockHash();
+        String chainstateHash = chainStore.getChainstateHash();
+        if (tipHash.equals(chainstateHash)) {
+            return;
+        }
+        long fromHeight = 0;
+        if (chainstateHash.length() > 0) {
+            Block chainstateBlock = chainStore.getBlockHeader(chainstateHash);
+            if (chainstateBlock == null || !chainstateHash.equals(chainStore.getBlockHash(chainstateBlock.getHeight()))) {
+                System.out.println("Fail to replay chainstate ! chainstate block is not in the main chain ! hash=" + chainstateHash);
+                throw new RuntimeException("Fail to replay chainstate ! chainstate block is not in the main chain ! hash=" + chainstateHash);
+            }
+            fromHeight = chainstateBlock.getHeight() + 1;
+        }
+        long tipHeight = chainStore.getBlockHeader(tipHash).getHeight();
+        System.out.printf("Start to replay chainstate ! height=%d-%d\n", fromHeight, tipHeight);
+        UTXOSet utxoSet = new UTXOSet(this);
+        for (long height = fromHeight; height <= tipHeight; height++) {
+            BlockConnectBatch batch = chainStore.beginBlockConnect();
+            utxoSet.update(this.getBlockByHeight(height), batch);
+            batch.commit();
+        }
+        chainStore.flushUTXOCache();
+        System.out.println("Replay chainstate finished ! ");
     }
 
     public Block mineBlock(Transaction[] transactions) throws Exception {
@@ -35,33 +80,100 @@ public class Blockchain {
                 throw new RuntimeException("ERROR: Fail to mine block ! Invalid transaction ! ");
             }
         }
-        String lastBlockHash = LevelDBUtil.getInstance().getLastBlockHash();
+        String lastBlockHash = chainStore.getLastBlockHash();
         if (StringUtils.isBlank(lastBlockHash)) {
             throw new Exception("Fail to add block into blockchain ! ");
         }
-        Block block = Block.createNewBlock(lastBlockHash, transactions);
+        Block lastBlock = chainStore.getBlock(lastBlockHash);
+        Block block = Block.createNewBlock(lastBlockHash, transactions, lastBlock.getHeight() + 1);
         this.addBlock(block);
         return block;
     }
 
+    /**
+     * 连接新区块，区块、UTXO池的变更以及最新区块哈希在同一批次中原子写入
+     * 连接前验证区块的工作量证明，外部提供的区块与本地挖出的区块使用相同的规则
+     *
+     * @param block
+     */
     public void addBlock(Block block) {
-        LevelDBUtil.getInstance().putLastBlockHash(block.getHash());
-        LevelDBUtil.getInstance().putBlock(block);
+        if (!this.validateBlock(block)) {
+            System.out.println("Fail to add block into blockchain ! invalid proof of work ! hash=" + block.getHash());
+            throw new RuntimeException("Fail to add block into blockchain ! invalid proof of work ! ");
+        }
+        BlockConnectBatch batch = chainStore.beginBlockConnect();
+        batch.putBlock(block);
+        new UTXOSet(this).update(block, batch);
+        batch.putLastBlockHash(block.getHash());
+        batch.commit();
         this.lastBlockHash = block.getHash();
+        chainStore.prune(block.getHeight());
+    }
+
+
+    /**
+     * 断开最新区块，UTXO池的恢复、索引的删除以及最新区块哈希在同一批次中原子写入
+     *
+     * @return 被断开的区块
+     */
+    public Block disconnectTip() {
+        String tipHash = chainStore.getLastBlockHash();
+        Block tip = chainStore.getBlock(tipHash);
+        if (tip == null) {
+            System.out.println("Fail to disconnect block ! blockchain is empty ! ");
+            throw new RuntimeException("Fail to disconnect block ! blockchain is empty ! ");
+        }
+        if (tip.getPreHash().length() == 0) {
+            System.out.println("Fail to disconnect block ! can not disconnect genesis block ! ");
+            throw new RuntimeException("Fail to disconnect block ! can not disconnect genesis block ! ");
+        }
+        BlockConnectBatch batch = chainStore.beginBlockConnect();
+        new UTXOSet(this).disconnect(tip, batch);
+        batch.disconnectBlock(tip);
+        batch.putLastBlockHash(tip.getPreHash());
+        batch.commit();
+        this.lastBlockHash = tip.getPreHash();
+        return tip;
     }
 
+    /**
+     * 依次断开最新区块，直到最新区块高度为指定高度
+     *
+     * @param height 目标高度
+     * @return 断开的区块数量
+     */
+    public int rewindTo(long height) {
+        int count = 0;
+        while (chainStore.getBlock(chainStore.getLastBlockHash()).getHeight() > height) {
+            Block block = this.disconnectTip();
+            System.out.printf("Disconnect block finished ! height=%d, hash=%s\n", block.getHeight(), block.getHash());
+            count++;
+        }
+        return count;
+    }
 
     public static Blockchain newBlockchain(String address) {
-        String lastBlockHash = LevelDBUtil.getInstance().getLastBlockHash();
+        return newBlockchain(LevelDBUtil.getInstance(), address);
+    }
+
+    /**
+     * 在指定的存储上创建区块链，存储中没有区块时创建创世区块
+     *
+     * @param chainStore 区块链存储
+     * @param address    接收创世区块奖励的地址
+     * @return
+     */
+    public static Blockchain newBlockchain(ChainStore chainStore, String address) {
+        String lastBlockHash = chainStore.getLastBlockHash();
         if (StringUtils.isBlank(lastBlockHash)) {
             // 创建 coinBase 交易，赋予创世区块
             Transaction coinbaseTX = Transaction.newCoinbaseTX(address, "");
             Block genesisBlock = Block.newGenesisBlock(coinbaseTX);
-            lastBlockHash = genesisBlock.getHash();
-            LevelDBUtil.getInstance().putBlock(genesisBlock);
-            LevelDBUtil.getInstance().putLastBlockHash(lastBlockHash);
+            Blockchain blockchain = new Blockchain(chainStore, lastBlockHash);
+            blockchain.addBlock(genesisBlock);
+            return blockchain;
         }
-        return new Blockchain(lastBlockHash);
+        return new Blockchain(chainStore, lastBlockHash);
     }
 
     /**
@@ -84,7 +196,7 @@ public class Blockchain {
             if (StringUtils.isBlank(currentBlockHash)) {
                 return false;
             }
-            Block lastBlock = LevelDBUtil.getInstance().getBlock(currentBlockHash);
+            Block lastBlock = chainStore.getBlock(currentBlockHash);
             if (lastBlock == null) {
                 return false;
             }
@@ -92,7 +204,7 @@ public class Blockchain {
             if (lastBlock.getPreHash().length() == 0) {
                 return true;
             }
-            return LevelDBUtil.getInstance().getBlock(lastBlock.getPreHash()) != null;
+            return chainStore.getBlock(lastBlock.getPreHash()) != null;
         }
 
 
@@ -102,7 +214,7 @@ public class Blockchain {
          * @throws Exception
          */
         public Block next() throws Exception {
-            Block currentBlock = LevelDBUtil.getInstance().getBlock(currentBlockHash);
+            Block currentBlock = chainStore.getBlock(currentBlockHash);
             if (currentBlock != null) {
                 this.currentBlockHash = currentBlock.getPreHash();
                 return currentBlock;
@@ -115,6 +227,39 @@ public class Blockchain {
         return new BlockchainIterator(lastBlockHash);
     }
 
+    /**
+     * 依据高度查询区块
+     *
+     * @param height 区块高度
+     * @return 高度超出区块链范围时返回null
+     */
+    public Block getBlockByHeight(long height) {
+        String blockHash = chainStore.getBlockHash(height);
+        if (StringUtils.isBlank(blockHash)) {
+            return null;
+        }
+        return chainStore.getBlock(blockHash);
+    }
+
+    /**
+     * 按高度范围查询区块，用于分页读取
+     *
+     * @param from 起始高度（包含）
+     * @param to   结束高度（包含），超出最新区块高度的部分会被忽略
+     * @return 按高度从低到高排列的区块
+     */
+    public List<Block> getBlocks(long from, long to) {
+        List<Block> blocks = Lists.newArrayList();
+        for (long height = Math.max(from, 0); height <= to; height++) {
+            Block block = this.getBlockByHeight(height);
+            if (block == null) {
+                break;
+            }
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
 
 
     /**
@@ -161,6 +306,7 @@ public class Blockchain {
      * @return 交易ID以及对应的交易输出下标地址
      */
     private Map<String, int[]> getAllSpentTXOs() throws Exception {
+        this.requireFullHistory("find spent outputs");
 
         Map<String, int[]> spentTXOs = Maps.newHashMap();
         for (BlockchainIterator blockchainIterator = this.getBlockchainIterator(); blockchainIterator.hashNext(); ) {
@@ -248,9 +394,10 @@ public class Blockchain {
      *
      * @return
      */
-    public Map<String, TXOutput[]> findAllUTXOs() throws Exception {
+    public Map<OutPoint, TXOutput> findAllUTXOs() throws Exception {
+        this.requireFullHistory("find all UTXOs");
         Map<String, int[]> allSpentTXOs = this.getAllSpentTXOs();
-        Map<String, TXOutput[]> allUTXOs = Maps.newHashMap();
+        Map<OutPoint, TXOutput> allUTXOs = Maps.newHashMap();
         // 再次遍历所有区块中的交易输出
         for (BlockchainIterator blockchainIterator = this.getBlockchainIterator(); blockchainIterator.hashNext(); ) {
             Block block = blockchainIterator.next();
@@ -264,13 +411,7 @@ public class Blockchain {
                     if (spentOutIndexArray != null && ArrayUtils.contains(spentOutIndexArray, outIndex)) {
                         continue;
                     }
-                    TXOutput[] UTXOArray = allUTXOs.get(txId);
-                    if (UTXOArray == null) {
-                        UTXOArray = new TXOutput[]{txOutputs[outIndex]};
-                    } else {
-                        UTXOArray = ArrayUtils.add(UTXOArray, txOutputs[outIndex]);
-                    }
-                    allUTXOs.put(txId, UTXOArray);
+                    allUTXOs.put(new OutPoint(txId, outIndex), txOutputs[outIndex]);
                 }
             }
         }
@@ -281,11 +422,12 @@ public class Blockchain {
 
 
     /**
-     * 查询钱包余额，需要回顾所有的UTXO并且相加
+     * 查询钱包余额，读取地址余额记录，不再遍历UTXO
      *
-     * @param
+     * @param address 钱包地址
+     * @return
      */
-    private void getBalance(String address) throws Exception {
+    public long getBalance(String address) {
         // 检查钱包地址是否合法
         try {
             Base58Util.base58ToBytes(address);
@@ -297,16 +439,9 @@ public class Blockchain {
         byte[] versionedPayload = Base58Util.base58ToBytes(address);
         byte[] publicKeyHash = Arrays.copyOfRange(versionedPayload, 1, versionedPayload.length);
 
-        Blockchain blockchain = Blockchain.newBlockchain(address);
-        UTXOSet utxoSet = new UTXOSet(blockchain);
-        TXOutput[] txOutputs = utxoSet.findUTXO(publicKeyHash);
-        int balance = 0;
-        if (txOutputs != null && txOutputs.length > 0) {
-            for (TXOutput txOutput : txOutputs) {
-                balance += txOutput.getValue();
-            }
-        }
+        long balance = chainStore.getBalance(publicKeyHash);
         System.out.printf("Balance of '%s': %d\n", address, balance);
+        return balance;
     }
 
     /**
@@ -350,23 +485,78 @@ public class Blockchain {
 
 
     /**
-     * 依据交易ID查询交易信息
+     * 依据交易ID查询交易信息，优先通过交易索引定位，索引缺失时再遍历区块链，区块缺失或被裁剪时使用UTXO池中的交易输出
      *
      * @param txId 交易ID
      * @return
      */
     private Transaction findTransaction(byte[] txId) throws Exception {
-        for (BlockchainIterator iterator = this.getBlockchainIterator(); iterator.hashNext(); ) {
-            Block block = iterator.next();
-            for (Transaction tx : block.getTransactions()) {
+        TXLocation location = chainStore.getTXLocation(Hex.encodeHexString(txId));
+        if (location != null && !chainStore.isBlockPruned(location.getBlockHash())) {
+            Block block = chainStore.getBlock(location.getBlockHash());
+            if (block != null && location.getIndex() < block.getTransactions().length) {
+                Transaction tx = block.getTransactions()[location.getIndex()];
                 if (Arrays.equals(tx.getTxId(), txId)) {
                     return tx;
                 }
             }
         }
+        // 裁剪过的区块链无法完整遍历
+        if (chainStore.getPrunedHeight() < 0) {
+            for (BlockchainIterator iterator = this.getBlockchainIterator(); iterator.hashNext(); ) {
+                Block block = iterator.next();
+                for (Transaction tx : block.getTransactions()) {
+                    if (Arrays.equals(tx.getTxId(), txId)) {
+                        return tx;
+                    }
+                }
+            }
+        }
+        // 区块已被裁剪，或者通过UTXO快照启动的节点没有快照高度之前的区块，只能从UTXO池中取得被引用的交易输出
+        // 交易输出按原索引放回，已被花费的位置为null
+        SortedMap<Integer, TXOutput> utxos = chainStore.getUTXOs(Hex.encodeHexString(txId));
+        if (!utxos.isEmpty()) {
+            TXOutput[] outputs = new TXOutput[utxos.lastKey() + 1];
+            for (Map.Entry<Integer, TXOutput> entry : utxos.entrySet()) {
+                outputs[entry.getKey()] = entry.getValue();
+            }
+            return new Transaction(txId, new TXInput[]{}, outputs);
+        }
         throw new Exception("ERROR: Can not found tx by txId ! ");
     }
 
+    /**
+     * 重建交易索引
+     */
+    public void reindexTransactions() throws Exception {
+        this.requireFullHistory("reindex transactions");
+        System.out.println("Start to reindex transactions !");
+        chainStore.cleanTXIndex();
+        BlockConnectBatch batch = chainStore.beginBlockConnect();
+        for (BlockchainIterator iterator = this.getBlockchainIterator(); iterator.hashNext(); ) {
+            Block block = iterator.next();
+            Transaction[] transactions = block.getTransactions();
+            for (int i = 0; i < transactions.length; i++) {
+                batch.putTXLocation(Hex.encodeHexString(transactions[i].getTxId()), new TXLocation(block.getHash(), i));
+            }
+        }
+        batch.commit();
+        System.out.println("Reindex transactions finished ! ");
+    }
+
+    /**
+     * 需要遍历完整区块历史的操作在区块被裁剪后无法执行
+     *
+     * @param operation 操作名称
+     */
+    public void requireFullHistory(String operation) {
+        long prunedHeight = chainStore.getPrunedHeight();
+        if (prunedHeight >= 0) {
+            System.out.printf("Fail to %s ! block bodies up to height %d are pruned ! \n", operation, prunedHeight);
+            throw new RuntimeException("Fail to " + operation + " ! block bodies up to height " + prunedHeight + " are pruned ! ");
+        }
+    }
+
     /**
      * 进行交易签名
      *
@@ -383,12 +573,22 @@ public class Blockchain {
         tx.sign(privateKey, prevTxMap);
     }
 
+    /**
+     * 验证区块的工作量证明，旧版本区块只在存储记录的旧版本区块高度以内被接受
+     *
+     * @param block
+     * @return
+     */
+    public boolean validateBlock(Block block) {
+        return ProofOfWork.newProofOfWork(block).validate(chainStore.getLegacyHeaderHeight());
+    }
+
     /**
      * 交易签名验证
      *
      * @param tx
      */
-    private boolean verifyTransactions(Transaction tx) throws Exception {
+    public boolean verifyTransactions(Transaction tx) throws Exception {
         Map<String, Transaction> prevTx = new HashMap<>();
         for (TXInput txInput : tx.getInputs()) {
             Transaction transaction = this.findTransaction(txInput.getTxId());
@@ -429,12 +629,10 @@ public class Blockchain {
             blockchain.mineBlock(new Transaction[]{transaction});*/
 
             Transaction transaction = Transaction.newTransaction("1GvsHC3QAogGVS52QAabz8W8M5UVJsfgAe", "16VvVLZh4PLFV1cBWunRw2cmVmwA28RTE6", 1, blockchain);
-            Block newBlock = blockchain.mineBlock(new Transaction[]{transaction});
-            utxoSet.update(newBlock);
+            blockchain.mineBlock(new Transaction[]{transaction});
 
             Transaction transaction1 = Transaction.newTransaction("1GvsHC3QAogGVS52QAabz8W8M5UVJsfgAe", "1JpHt562Y5Gg2iZpqAwzaBSYc5hYNpJrYd", 6, blockchain);
-            Block newBlock1 = blockchain.mineBlock(new Transaction[]{transaction1});
-            utxoSet.update(newBlock1);
+            blockchain.mineBlock(new Transaction[]{transaction1});
             //System.out.println("Success!");
 
             blockchain.getBalance("1GvsHC3QAogGVS52QAabz8W8M5UVJsfgAe");
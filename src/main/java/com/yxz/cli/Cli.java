@@ -3,7 +3,17 @@ package com.yxz.cli;
 import com.yxz.block.Block;
 import com.yxz.block.Blockchain;
 import com.yxz.consensus.ProofOfWork;
+import com.yxz.transaction.UTXOSet;
+import com.yxz.transaction.UTXOSnapshot;
+import com.yxz.util.LevelDBUtil;
 import org.apache.commons.cli.*;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 命令行解析器
@@ -26,11 +36,29 @@ public class Cli {
         Option sendFrom = Option.builder("from").hasArg(true).desc("Source wallet address").build();
         Option sendTo = Option.builder("to").hasArg(true).desc("Destination wallet address").build();
         Option sendAmount = Option.builder("amount").hasArg(true).desc("Amount to send").build();
+        Option file = Option.builder("file").hasArg(true).desc("UTXO snapshot file").build();
+        Option keepBlocks = Option.builder("keep").hasArg(true).desc("Number of recent blocks to keep").build();
+        Option targetMB = Option.builder("mb").hasArg(true).desc("Disk budget of block files in MB").build();
+        Option height = Option.builder("height").hasArg(true).desc("Block height").build();
+        Option threads = Option.builder("threads").hasArg(true).desc("Number of threads").build();
+        Option batch = Option.builder("batch").hasArg(true).desc("Number of UTXO changes per batch").build();
+        Option rounds = Option.builder("rounds").hasArg(true).desc("Number of benchmark rounds").build();
+        Option count = Option.builder("count").hasArg(true).desc("Number of UTXOs").build();
+        Option verify = Option.builder("verify").hasArg(true).desc("Data directory with the full block history").build();
 
         options.addOption(address);
         options.addOption(sendFrom);
         options.addOption(sendTo);
         options.addOption(sendAmount);
+        options.addOption(file);
+        options.addOption(keepBlocks);
+        options.addOption(targetMB);
+        options.addOption(height);
+        options.addOption(threads);
+        options.addOption(batch);
+        options.addOption(rounds);
+        options.addOption(count);
+        options.addOption(verify);
     }
 
     /**
@@ -45,6 +73,55 @@ public class Cli {
                 case "printchain":
                     //this.printChain();
                     break;
+                case "getbalance":
+                    this.getBalance(cmd.getOptionValue("address"));
+                    break;
+                case "reindextx":
+                    this.reindexTransactions();
+                    break;
+                case "reindexutxo":
+                    if (cmd.hasOption("batch")) {
+                        this.reindexUTXOStreaming(cmd.getOptionValue("batch"));
+                        break;
+                    }
+                    this.reindexUTXO(cmd.getOptionValue("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+                    break;
+                case "dumpsnapshot":
+                    this.dumpSnapshot(cmd.getOptionValue("file"));
+                    break;
+                case "loadsnapshot":
+                    this.loadSnapshot(cmd.getOptionValue("file"),
+                            cmd.getOptionValue("batch", String.valueOf(UTXOSnapshot.DEFAULT_LOAD_BATCH_SIZE)),
+                            cmd.getOptionValue("verify"));
+                    break;
+                case "verifysnapshot":
+                    this.verifySnapshot(cmd.getOptionValue("file"));
+                    break;
+                case "prune":
+                    this.prune(cmd.getOptionValue("keep", "0"), cmd.getOptionValue("mb", "0"));
+                    break;
+                case "rewind":
+                    this.rewind(cmd.getOptionValue("height"));
+                    break;
+                case "benchcoins":
+                    CoinSelectionBenchmark.run(cmd.getOptionValue("from"), cmd.getOptionValue("to"),
+                            Integer.parseInt(cmd.getOptionValue("rounds", "100")));
+                    break;
+                case "benchmine":
+                    MiningBenchmark.run(Integer.parseInt(cmd.getOptionValue("count", "1000000")),
+                            Integer.parseInt(cmd.getOptionValue("rounds", "5")),
+                            Integer.parseInt(cmd.getOptionValue("threads",
+                                    String.valueOf(Runtime.getRuntime().availableProcessors()))));
+                    break;
+                case "benchutxomap":
+                    UTXOMapBenchmark.run(Integer.parseInt(cmd.getOptionValue("count", "500000")));
+                    break;
+                case "utxohash":
+                    this.printUTXOCommitment();
+                    break;
+                case "startupstats":
+                    this.startupStats();
+                    break;
                 case "h":
                     this.help();
                     break;
@@ -80,9 +157,188 @@ public class Cli {
         System.out.println("  createblockchain -address ADDRESS - Create a blockchain and send genesis block reward to ADDRESS");
         System.out.println("  printchain - Print all the blocks of the blockchain");
         System.out.println("  send -from FROM -to TO -amount AMOUNT - Send AMOUNT of coins from FROM address to TO");
+        System.out.println("  reindextx - Rebuild the txid index of the blockchain");
+        System.out.println("  reindexutxo [-threads N] - Rebuild the UTXO set from the blocks using N threads");
+        System.out.println("  reindexutxo -batch N - Rebuild the UTXO set in one streaming pass, writing every N UTXO changes");
+        System.out.println("  dumpsnapshot -file FILE - Export the UTXO set at the current tip to FILE");
+        System.out.println("  loadsnapshot -file FILE [-batch N] [-verify DIR] - Bootstrap an empty node from the UTXO snapshot FILE, writing N UTXOs per batch;");
+        System.out.println("      with -verify, replay the full block history of the node in DIR in the background and compare it with FILE");
+        System.out.println("  verifysnapshot -file FILE - Replay the local block history and compare it with the UTXO snapshot FILE");
+        System.out.println("  prune [-keep N] [-mb M] - Discard old block bodies, keeping the last N blocks or at most M MB of block files");
+        System.out.println("  rewind -height HEIGHT - Disconnect blocks from the tip until the tip is at HEIGHT");
+        System.out.println("  benchcoins -from FROM -to TO [-rounds N] - Compare coin selection strategies on an in-memory chain");
+        System.out.println("  benchmine [-count N] [-rounds N] [-threads N] - Compare the hash rate of the mining loops");
+        System.out.println("  benchutxomap [-count N] - Compare the memory per UTXO of the heap maps and the off-heap UTXO table");
+        System.out.println("  utxohash - Print the order-independent hash of the UTXO set");
+        System.out.println("  startupstats - Print the time and memory used to open the blockchain");
         System.exit(0);
     }
 
+    /**
+     * 重建交易索引
+     */
+    private void reindexTransactions() throws Exception {
+        Blockchain blockchain = new Blockchain(LevelDBUtil.getInstance().getLastBlockHash());
+        blockchain.reindexTransactions();
+    }
+
+    /**
+     * 打印UTXO池的承诺值，用于比较两个节点的UTXO池是否一致
+     */
+    private void printUTXOCommitment() {
+        LevelDBUtil store = LevelDBUtil.getInstance();
+        long start = System.nanoTime();
+        String commitment = Hex.encodeHexString(store.getUTXOCommitment());
+        System.out.printf("UTXO set hash: %s\n", commitment);
+        System.out.printf("Best block: %s\n", store.getLastBlockHash());
+        System.out.printf("Time: %.3f ms\n", (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * 查询钱包余额
+     *
+     * @param address 钱包地址
+     */
+    private void getBalance(String address) {
+        Blockchain blockchain = new Blockchain(LevelDBUtil.getInstance().getLastBlockHash());
+        blockchain.getBalance(address);
+    }
+
+    /**
+     * 并行重建UTXO池
+     *
+     * @param threads 并行线程数
+     */
+    private void reindexUTXO(String threads) throws Exception {
+        Blockchain blockchain = new Blockchain(LevelDBUtil.getInstance().getLastBlockHash());
+        new UTXOSet(blockchain).reset(Integer.parseInt(threads));
+    }
+
+    /**
+     * 流式重建UTXO池
+     *
+     * @param batchSize 每个批次的UTXO变更数量
+     */
+    private void reindexUTXOStreaming(String batchSize) throws Exception {
+        Blockchain blockchain = new Blockchain(LevelDBUtil.getInstance().getLastBlockHash());
+        new UTXOSet(blockchain).resetStreaming(Integer.parseInt(batchSize));
+    }
+
+    /**
+     * 导出UTXO快照
+     *
+     * @param file 快照文件
+     */
+    private void dumpSnapshot(String file) {
+        Blockchain blockchain = new Blockchain(LevelDBUtil.getInstance().getLastBlockHash());
+        UTXOSnapshot.export(blockchain, new File(file));
+    }
+
+    /**
+     * 从UTXO快照启动空节点
+     *
+     * @param file       快照文件
+     * @param batchSize  每个批次写入的UTXO数量
+     * @param historyDir 包含完整区块历史的数据目录，为null时不验证
+     */
+    private void loadSnapshot(String file, String batchSize, String historyDir) {
+        File snapshotFile = new File(file);
+        if (historyDir == null) {
+            UTXOSnapshot.load(LevelDBUtil.getInstance(), snapshotFile, Integer.parseInt(batchSize));
+            return;
+        }
+        // 导入快照的同时，在后台用另一个节点的完整区块历史重新验证快照
+        LevelDBUtil history = LevelDBUtil.open(new File(historyDir));
+        try {
+            CompletableFuture<Boolean> verified = UTXOSnapshot.verifyHistoryAsync(
+                    new Blockchain(history, history.getLastBlockHash()), snapshotFile);
+            try {
+                UTXOSnapshot.load(LevelDBUtil.getInstance(), snapshotFile, Integer.parseInt(batchSize));
+            } finally {
+                // 关闭历史存储前等待验证结束
+                boolean valid = verified.exceptionally(e -> false).join();
+                System.out.println("Verify UTXO snapshot with block history: " + (valid ? "valid" : "INVALID"));
+            }
+        } finally {
+            history.closeDB();
+        }
+    }
+
+    /**
+     * 使用本地区块历史重新验证UTXO快照
+     *
+     * @param file 快照文件
+     */
+    private void verifySnapshot(String file) {
+        Blockchain blockchain = new Blockchain(LevelDBUtil.getInstance().getLastBlockHash());
+        UTXOSnapshot.verifyHistory(blockchain, new File(file));
+    }
+
+    /**
+     * 按给定的保留策略裁剪旧区块
+     *
+     * @param keepBlocks 保留的最近区块数量
+     * @param targetMB   区块文件磁盘占用上限（MB）
+     */
+    private void prune(String keepBlocks, String targetMB) {
+        LevelDBUtil store = LevelDBUtil.getInstance();
+        store.setPruneKeepBlocks(Long.parseLong(keepBlocks));
+        store.setPruneTargetBytes(Long.parseLong(targetMB) * 1024 * 1024);
+        Block lastBlock = store.getBlock(store.getLastBlockHash());
+        if (lastBlock == null) {
+            System.out.println("Fail to prune blocks ! blockchain is empty ! ");
+            return;
+        }
+        store.prune(lastBlock.getHeight());
+        System.out.println("Pruned height: " + store.getPrunedHeight());
+    }
+
+    /**
+     * 利用撤销数据断开区块，回退到指定高度
+     *
+     * @param height 目标高度
+     */
+    private void rewind(String height) {
+        Blockchain blockchain = new Blockchain(LevelDBUtil.getInstance().getLastBlockHash());
+        int count = blockchain.rewindTo(Long.parseLong(height));
+        System.out.println("Rewind finished ! disconnected blocks: " + count);
+    }
+
+    /**
+     * 打印打开区块链存储的耗时以及内存占用，便于跟踪启动开销
+     */
+    private void startupStats() {
+        LevelDBUtil store = LevelDBUtil.getInstance();
+        String lastBlockHash = store.getLastBlockHash();
+        long sinceJvmStart = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        Block lastBlock = store.getBlock(lastBlockHash);
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        System.out.printf("open store: %d ms, since jvm start: %d ms\n", store.getOpenTimeMillis(), sinceJvmStart);
+        System.out.printf("tip: %s, height: %s\n", lastBlockHash, lastBlock == null ? "-" : lastBlock.getHeight());
+        System.out.printf("heap used: %d KB, resident: %s\n", heapUsed / 1024, residentMemory());
+        System.out.printf("utxo cache: %d KB used / %d KB limit, chainstate: %s\n",
+                store.getUTXOCacheUsage() / 1024, store.getUTXOCacheBytes() / 1024, store.getChainstateHash());
+    }
+
+    /**
+     * 读取进程的常驻内存，只支持提供 /proc 的系统
+     *
+     * @return
+     */
+    private String residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return line.substring("VmRSS:".length()).trim();
+                }
+            }
+        } catch (Exception e) {
+            // 其他系统上没有 /proc，忽略
+        }
+        return "n/a";
+    }
+
     /**
      * 打印出区块链中的所有区块
      */
@@ -92,7 +348,7 @@ public class Cli {
         for (Blockchain.BlockchainIterator iterator = blockchain.getBlockchainIterator(); iterator.hashNext(); ) {
             Block block = iterator.next();
             if (block != null) {
-                boolean validate = ProofOfWork.newProofOfWork(block).validate();
+                boolean validate = blockchain.validateBlock(block);
                 System.out.println(block.toString() + ", validate = " + validate);
             }
         }
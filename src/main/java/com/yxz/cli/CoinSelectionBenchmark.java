@@ -0,0 +1,148 @@
+package com.yxz.cli;
+
+import com.yxz.block.Block;
+import com.yxz.block.Blockchain;
+import com.yxz.store.MemoryChainStore;
+import com.yxz.transaction.BranchAndBoundCoinSelector;
+import com.yxz.transaction.CoinSelector;
+import com.yxz.transaction.FirstFitCoinSelector;
+import com.yxz.transaction.LargestFirstCoinSelector;
+import com.yxz.transaction.MinInputCountCoinSelector;
+import com.yxz.transaction.SpendableTXOutput;
+import com.yxz.transaction.TXInput;
+import com.yxz.transaction.TXOutput;
+import com.yxz.transaction.Transaction;
+import com.yxz.transaction.UTXOSet;
+import com.yxz.util.AddressUtil;
+import com.yxz.util.WalletUtil;
+import com.yxz.wallet.Wallet;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * 选币策略基准测试
+ * <p>
+ * 在内存存储上为发送方构造大量金额各不相同的交易输出，然后用每种策略发送同一组随机金额，
+ * 统计交易输入数量、需要找零的比例，以及创建、签名并验证一笔交易的耗时。
+ * 交易不打包进区块，每种策略面对的UTXO完全相同。
+ *
+ */
+class CoinSelectionBenchmark {
+
+    /**
+     * 为发送方挖出的区块数量，每个区块一笔挖矿奖励
+     */
+    private static final int REWARD_BLOCKS = 50;
+
+    /**
+     * 拆分后的交易输出数量
+     */
+    private static final int SPLIT_OUTPUTS = 200;
+
+    /**
+     * 发送金额的上限
+     */
+    private static final int MAX_AMOUNT = 60;
+
+    private static final long SEED = 20240601L;
+
+    /**
+     * 运行基准测试
+     *
+     * @param from   发送方钱包地址，需要在本地钱包中
+     * @param to     接收方钱包地址
+     * @param rounds 每种策略发送的次数
+     */
+    static void run(String from, String to, int rounds) throws Exception {
+        Blockchain blockchain = prepare(from);
+        Random random = new Random(SEED);
+        int[] amounts = new int[rounds];
+        for (int i = 0; i < rounds; i++) {
+            amounts[i] = 1 + random.nextInt(MAX_AMOUNT);
+        }
+
+        Map<String, CoinSelector> selectors = new LinkedHashMap<>();
+        selectors.put("first-fit", new FirstFitCoinSelector());
+        selectors.put("largest-first", new LargestFirstCoinSelector());
+        selectors.put("min-inputs", new MinInputCountCoinSelector());
+        selectors.put("branch-and-bound", new BranchAndBoundCoinSelector());
+
+        System.out.printf("utxos=%d, rounds=%d, amount=1-%d\n", SPLIT_OUTPUTS, rounds, MAX_AMOUNT);
+        System.out.printf("%-18s %10s %10s %10s %14s\n", "strategy", "avg inputs", "max inputs", "change %", "avg send ms");
+        for (Map.Entry<String, CoinSelector> entry : selectors.entrySet()) {
+            // 预热一次，避免首次签名的类加载计入耗时
+            Transaction.newTransaction(from, to, amounts[0], blockchain, entry.getValue());
+            long inputs = 0;
+            int maxInputs = 0;
+            int change = 0;
+            long nanos = 0;
+            for (int amount : amounts) {
+                long start = System.nanoTime();
+                Transaction tx = Transaction.newTransaction(from, to, amount, blockchain, entry.getValue());
+                if (!blockchain.verifyTransactions(tx)) {
+                    throw new RuntimeException("Fail to run coin selection benchmark ! invalid transaction ! ");
+                }
+                nanos += System.nanoTime() - start;
+                inputs += tx.getInputs().length;
+                maxInputs = Math.max(maxInputs, tx.getInputs().length);
+                if (tx.getOutputs().length > 1) {
+                    change++;
+                }
+            }
+            System.out.printf("%-18s %10.2f %10d %10.1f %14.2f\n", entry.getKey(), (double) inputs / rounds, maxInputs,
+                    100.0 * change / rounds, nanos / 1e6 / rounds);
+        }
+    }
+
+    /**
+     * 在内存存储上创建区块链，并把发送方的挖矿奖励拆分为金额随机的交易输出
+     *
+     * @param from 发送方钱包地址
+     * @return
+     */
+    private static Blockchain prepare(String from) throws Exception {
+        Blockchain blockchain = Blockchain.newBlockchain(new MemoryChainStore(), from);
+        for (int i = 1; i < REWARD_BLOCKS; i++) {
+            // 挖矿奖励交易没有可以验证的交易输入，直接连接区块
+            Block tip = blockchain.getChainStore().getBlockHeader(blockchain.getLastBlockHash());
+            Transaction reward = Transaction.newCoinbaseTX(from, "benchmark reward " + i);
+            blockchain.addBlock(Block.createNewBlock(tip.getHash(), new Transaction[]{reward}, tip.getHeight() + 1));
+        }
+
+        Wallet wallet = WalletUtil.getInstance().getWallet(from);
+        byte[] publicKeyHash = AddressUtil.ripeMD160Hash(wallet.getPublicKey());
+        SpendableTXOutput spendable = new UTXOSet(blockchain).findSpendableTXOutputs(publicKeyHash, Integer.MAX_VALUE);
+        TXInput[] txInputs = {};
+        for (Map.Entry<String, int[]> entry : spendable.getUnspentTXOs().entrySet()) {
+            for (int index : entry.getValue()) {
+                txInputs = ArrayUtils.add(txInputs, new TXInput(Hex.decodeHex(entry.getKey()), index, null, wallet.getPublicKey()));
+            }
+        }
+
+        // 随机切分总额，得到金额各不相同的交易输出
+        Random random = new Random(SEED);
+        TreeSet<Integer> cuts = new TreeSet<>();
+        while (cuts.size() < SPLIT_OUTPUTS - 1) {
+            cuts.add(1 + random.nextInt(spendable.getTotal() - 1));
+        }
+        cuts.add(spendable.getTotal());
+        TXOutput[] txOutputs = new TXOutput[SPLIT_OUTPUTS];
+        int previous = 0;
+        int i = 0;
+        for (int cut : cuts) {
+            txOutputs[i++] = TXOutput.newTXOutput(cut - previous, from);
+            previous = cut;
+        }
+
+        Transaction split = new Transaction(null, txInputs, txOutputs);
+        split.setTxId(split.hash());
+        blockchain.signTransaction(split, wallet.getPrivateKey());
+        blockchain.mineBlock(new Transaction[]{split});
+        return blockchain;
+    }
+}
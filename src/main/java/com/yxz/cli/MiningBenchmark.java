@@ -0,0 +1,169 @@
+package com.yxz.cli;
+
+import com.yxz.block.BlockHeader;
+import com.yxz.consensus.HeaderHasher;
+import com.yxz.consensus.ProofOfWork;
+import com.yxz.util.StringUtil;
+import org.apache.commons.codec.binary.Hex;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 挖矿循环基准测试
+ * <p>
+ * 对同一个区块头依次尝试相同数量的nonce，比较每次尝试的耗时和分配的内存：
+ * 拼接字符串后计算Hash的旧方式、每次序列化区块头的方式、复用中间状态的 HeaderHasher，以及多线程的 HeaderHasher。
+ * 每种方式先预热一轮，之后取多轮中最快的一轮。开始前先校验 HeaderHasher 与 BlockHeader 的计算结果一致。
+ *
+ */
+class MiningBenchmark {
+
+    private static final long SEED = 20240601L;
+
+    /**
+     * 累加尝试结果，避免循环被JIT优化掉
+     */
+    private static volatile long sink;
+
+    /**
+     * 运行基准测试
+     *
+     * @param count   每轮尝试的nonce数量
+     * @param rounds  测试轮数
+     * @param threads 多线程测试的线程数
+     */
+    static void run(int count, int rounds, int threads) {
+        Random random = new Random(SEED);
+        byte[] preHash = new byte[32];
+        byte[] merkleRoot = new byte[32];
+        random.nextBytes(preHash);
+        random.nextBytes(merkleRoot);
+        BlockHeader header = new BlockHeader(Hex.encodeHexString(preHash), merkleRoot,
+                Instant.now().getEpochSecond(), ProofOfWork.TARGET_BITS, 0);
+        BigInteger target = BigInteger.valueOf(1).shiftLeft(256 - ProofOfWork.TARGET_BITS);
+        checkConsistency(header, target);
+
+        // 旧版本中与nonce无关的字符串部分，这里只拼接一次，不计入重建merkle树的开销
+        String prefix = header.getPreHash() + Hex.encodeHexString(merkleRoot) + header.getTimeStamp() + header.getBits();
+
+        System.out.printf("nonces=%d, rounds=%d\n", count, rounds);
+        System.out.printf("%-24s %10s %12s %14s %10s\n", "loop", "ns/hash", "MH/s", "bytes/hash", "speedup");
+        double baseline = measure("string + BigInteger", count, rounds, 0, nonce ->
+                new BigInteger(StringUtil.applySha256(prefix + nonce), 16).compareTo(target) == -1);
+        measure("BlockHeader.hash", count, rounds, baseline, nonce ->
+                new BigInteger(header.hash(nonce), 16).compareTo(target) == -1);
+        HeaderHasher hasher = new HeaderHasher(header.toBytes(), target);
+        measure("HeaderHasher", count, rounds, baseline, hasher::meetsTarget);
+        if (threads > 1) {
+            measureParallel(header, target, count, rounds, threads, baseline);
+        }
+    }
+
+    /**
+     * 校验 HeaderHasher 与 BlockHeader 的Hash值、与难度目标的比较结果一致
+     */
+    private static void checkConsistency(BlockHeader header, BigInteger target) {
+        HeaderHasher hasher = new HeaderHasher(header.toBytes(), target);
+        for (long nonce = 0; nonce < 10000; nonce++) {
+            String expected = header.hash(nonce);
+            boolean meetsTarget = new BigInteger(expected, 16).compareTo(target) == -1;
+            if (!expected.equals(hasher.hashHex(nonce)) || meetsTarget != hasher.meetsTarget(nonce)) {
+                throw new RuntimeException("Fail to run mining benchmark ! header hasher mismatch ! nonce=" + nonce);
+            }
+        }
+    }
+
+    private static double measure(String name, int count, int rounds, double baseline, Attempt attempt) {
+        long hits = run(attempt, count);
+        long bestNanos = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int round = 0; round < rounds; round++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            hits += run(attempt, count);
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            allocated = allocatedBytes() - bytesBefore;
+        }
+        double nanosPerHash = (double) bestNanos / count;
+        print(name, nanosPerHash, allocatedBytes() < 0 ? "n/a" : String.format("%.1f", (double) allocated / count),
+                baseline);
+        sink += hits;
+        return nanosPerHash;
+    }
+
+    private static void measureParallel(BlockHeader header, BigInteger target, int count, int rounds, int threads,
+                                        double baseline) {
+        LongAdder hits = new LongAdder();
+        long bestNanos = Long.MAX_VALUE;
+        for (int round = 0; round <= rounds; round++) {
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int i = 0; i < threads; i++) {
+                long firstNonce = i;
+                workers[i] = new Thread(() -> {
+                    HeaderHasher hasher = new HeaderHasher(header.toBytes(), target);
+                    long found = 0;
+                    for (long nonce = firstNonce; nonce < count; nonce += threads) {
+                        if (hasher.meetsTarget(nonce)) {
+                            found++;
+                        }
+                    }
+                    hits.add(found);
+                });
+                workers[i].start();
+            }
+            try {
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Fail to run mining benchmark ! ", e);
+            }
+            // 第一轮作为预热
+            if (round > 0) {
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            }
+        }
+        sink += hits.sum();
+        print("HeaderHasher x" + threads, (double) bestNanos / count, "n/a", baseline);
+    }
+
+    private static void print(String name, double nanosPerHash, String bytesPerHash, double baseline) {
+        System.out.printf("%-24s %10.1f %12.2f %14s %10s\n", name, nanosPerHash, 1000 / nanosPerHash, bytesPerHash,
+                baseline > 0 ? String.format("%.1fx", baseline / nanosPerHash) : "1.0x");
+    }
+
+    private static long run(Attempt attempt, int count) {
+        long hits = 0;
+        for (long nonce = 0; nonce < count; nonce++) {
+            if (attempt.meetsTarget(nonce)) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * 当前线程已分配的字节数，不支持时返回-1
+     *
+     * @return
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private interface Attempt {
+
+        boolean meetsTarget(long nonce);
+    }
+}
@@ -0,0 +1,170 @@
+package com.yxz.cli;
+
+import com.yxz.store.OffHeapUTXOTable;
+import com.yxz.transaction.OutPoint;
+import com.yxz.transaction.TXOutput;
+import com.yxz.util.SerializeUtil;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * UTXO表内存占用基准测试
+ * <p>
+ * 分别向以字符串为键的 HashMap、内存存储使用的 ConcurrentSkipListMap 以及堆外的 OffHeapUTXOTable 写入同样的UTXO，
+ * 统计每条UTXO占用的堆内存和堆外内存，以及写入、读取的平均耗时。
+ * 每种结构都重新生成键，避免共享字符串对象导致低估堆内存。
+ *
+ */
+class UTXOMapBenchmark {
+
+    private static final long SEED = 20240601L;
+
+    /**
+     * 运行基准测试
+     *
+     * @param count UTXO数量
+     */
+    static void run(int count) {
+        System.out.printf("utxos=%d\n", count);
+        System.out.printf("%-22s %14s %14s %14s %10s %10s\n",
+                "structure", "heap B/entry", "direct B/entry", "total B/entry", "put ns", "get ns");
+        measure("HashMap<String,byte[]>", count, new MapTarget(new HashMap<>(), ""));
+        measure("ConcurrentSkipListMap", count, new MapTarget(new ConcurrentSkipListMap<>(), "c|"));
+        measure("OffHeapUTXOTable", count, new OffHeapTarget(new OffHeapUTXOTable()));
+    }
+
+    private static void measure(String name, int count, Target target) {
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        Random random = new Random(SEED);
+        for (int i = 0; i < count; i++) {
+            target.put(nextKey(random, i), nextValue(random));
+        }
+        long putNanos = System.nanoTime() - start;
+        long heap = usedHeap() - heapBefore;
+        long direct = target.directBytes();
+
+        random = new Random(SEED);
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            String key = nextKey(random, i);
+            nextValue(random);
+            if (target.get(key) == null) {
+                throw new RuntimeException("Fail to run UTXO map benchmark ! utxo is missing ! key=" + key);
+            }
+        }
+        long getNanos = System.nanoTime() - start;
+        System.out.printf("%-22s %14.1f %14.1f %14.1f %10d %10d\n", name, (double) heap / count, (double) direct / count,
+                (double) (heap + direct) / count, putNanos / count, getNanos / count);
+        target.clear();
+    }
+
+    private static String nextKey(Random random, int i) {
+        byte[] txId = new byte[32];
+        random.nextBytes(txId);
+        return OutPoint.key(Hex.encodeHexString(txId), i % 3);
+    }
+
+    private static byte[] nextValue(Random random) {
+        byte[] publicKeyHash = new byte[20];
+        random.nextBytes(publicKeyHash);
+        return SerializeUtil.serialize(new TXOutput(1 + random.nextInt(1000), publicKeyHash));
+    }
+
+    /**
+     * 多次GC后的堆内存占用
+     *
+     * @return
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface Target {
+
+        void put(String key, byte[] value);
+
+        byte[] get(String key);
+
+        long directBytes();
+
+        void clear();
+    }
+
+    private static class MapTarget implements Target {
+
+        private final Map<String, byte[]> map;
+
+        /**
+         * 键前缀，与存储中的键保持一致
+         */
+        private final String keyPrefix;
+
+        private MapTarget(Map<String, byte[]> map, String keyPrefix) {
+            this.map = map;
+            this.keyPrefix = keyPrefix;
+        }
+
+        @Override
+        public void put(String key, byte[] value) {
+            map.put(keyPrefix + key, value);
+        }
+
+        @Override
+        public byte[] get(String key) {
+            return map.get(keyPrefix + key);
+        }
+
+        @Override
+        public long directBytes() {
+            return 0;
+        }
+
+        @Override
+        public void clear() {
+            map.clear();
+        }
+    }
+
+    private static class OffHeapTarget implements Target {
+
+        private final OffHeapUTXOTable table;
+
+        private OffHeapTarget(OffHeapUTXOTable table) {
+            this.table = table;
+        }
+
+        @Override
+        public void put(String key, byte[] value) {
+            table.put(key, value);
+        }
+
+        @Override
+        public byte[] get(String key) {
+            return table.get(key);
+        }
+
+        @Override
+        public long directBytes() {
+            return table.getAllocatedBytes();
+        }
+
+        @Override
+        public void clear() {
+            table.clear();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.yxz.consensus;
+
+import com.yxz.block.BlockHeader;
+import org.apache.commons.codec.binary.Hex;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * 面向字节的区块头SHA-256计算，用于挖矿循环
+ * <p>
+ * 区块头共84字节，前64字节（前一区块Hash与merkle根）恰好是SHA-256的第一个分组，与nonce无关，
+ * 在创建时压缩一次得到中间状态（midstate）。剩余的时间戳、难度目标位、nonce与填充组成第二个分组，
+ * 其中前三个字与nonce无关，前三轮运算也预先完成。
+ * 每次尝试只需把nonce写入复用的消息数组并压缩剩余轮次，再按字与难度目标比较，不创建任何对象。
+ * <p>
+ * 实例不是线程安全的，每个挖矿线程各自创建
+ */
+public class HeaderHasher {
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL_STATE = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    /**
+     * 第二个分组中nonce之前与nonce无关的字数（时间戳两个字、难度目标位一个字）
+     */
+    private static final int CONSTANT_TAIL_WORDS = 3;
+
+    /**
+     * 消息扩展中第一个依赖nonce的字
+     */
+    private static final int FIRST_NONCE_DEPENDENT_SCHEDULE = 18;
+
+    /**
+     * 第一个分组压缩后的中间状态
+     */
+    private final int[] midstate = new int[8];
+
+    /**
+     * 第二个分组完成前三轮后的工作变量
+     */
+    private final int[] precomputed = new int[8];
+
+    /**
+     * 复用的消息扩展数组
+     */
+    private final int[] w = new int[64];
+
+    /**
+     * 复用的Hash结果
+     */
+    private final int[] digest = new int[8];
+
+    /**
+     * 难度目标值按大端序拆分成的8个字
+     */
+    private final int[] targetWords = new int[8];
+
+    /**
+     * @param header 序列化后的区块头，其中的nonce不参与计算
+     * @param target 难度目标值
+     */
+    public HeaderHasher(byte[] header, BigInteger target) {
+        if (header.length != BlockHeader.HEADER_LENGTH) {
+            throw new RuntimeException("Fail to create header hasher ! invalid header length=" + header.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        for (int i = 0; i < 16; i++) {
+            w[i] = buffer.getInt();
+        }
+        System.arraycopy(INITIAL_STATE, 0, midstate, 0, 8);
+        expand(w, 16);
+        compress(midstate, w);
+
+        for (int i = 0; i < CONSTANT_TAIL_WORDS; i++) {
+            w[i] = buffer.getInt();
+        }
+        // nonce之后的填充：0x80结束标记与以比特计的消息长度
+        w[5] = 0x80000000;
+        for (int i = 6; i < 15; i++) {
+            w[i] = 0;
+        }
+        w[15] = BlockHeader.HEADER_LENGTH * 8;
+        // 消息扩展的第16、17个字只依赖与nonce无关的字
+        w[16] = schedule(w, 16);
+        w[17] = schedule(w, 17);
+        System.arraycopy(midstate, 0, precomputed, 0, 8);
+        for (int i = 0; i < CONSTANT_TAIL_WORDS; i++) {
+            round(precomputed, w[i], K[i]);
+        }
+
+        byte[] targetBytes = target.toByteArray();
+        if (targetBytes.length > 33 || (targetBytes.length == 33 && targetBytes[0] != 0)) {
+            throw new RuntimeException("Fail to create header hasher ! target is larger than 256 bits ! ");
+        }
+        byte[] padded = new byte[32];
+        int length = Math.min(targetBytes.length, 32);
+        System.arraycopy(targetBytes, targetBytes.length - length, padded, 32 - length, length);
+        ByteBuffer.wrap(padded).asIntBuffer().get(targetWords);
+    }
+
+    /**
+     * 使用指定nonce计算区块头的Hash值，判断是否小于难度目标值
+     *
+     * @param nonce
+     * @return
+     */
+    public boolean meetsTarget(long nonce) {
+        this.hash(nonce);
+        for (int i = 0; i < 8; i++) {
+            int compare = Integer.compareUnsigned(digest[i], targetWords[i]);
+            if (compare != 0) {
+                return compare < 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 使用指定nonce计算区块头的Hash值，结果为十六进制表示，只在找到解或验证时调用
+     *
+     * @param nonce
+     * @return
+     */
+    public String hashHex(long nonce) {
+        this.hash(nonce);
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        buffer.asIntBuffer().put(digest);
+        return Hex.encodeHexString(buffer.array());
+    }
+
+    /**
+     * 计算区块头的Hash值，结果写入digest
+     * <p>
+     * 从第四轮开始压缩第二个分组，依赖nonce的消息扩展在轮运算中同时计算
+     *
+     * @param nonce
+     */
+    private void hash(long nonce) {
+        int[] w = this.w;
+        w[3] = (int) (nonce >>> 32);
+        w[4] = (int) nonce;
+        int[] v = this.precomputed;
+        int a = v[0], b = v[1], c = v[2], d = v[3], e = v[4], f = v[5], g = v[6], h = v[7];
+        for (int i = CONSTANT_TAIL_WORDS; i < 64; i++) {
+            int wi;
+            if (i < FIRST_NONCE_DEPENDENT_SCHEDULE) {
+                wi = w[i];
+            } else {
+                int w15 = w[i - 15], w2 = w[i - 2];
+                wi = w[i - 16] + (Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3))
+                        + w[i - 7] + (Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10));
+                w[i] = wi;
+            }
+            int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                    + ((e & f) ^ (~e & g)) + K[i] + wi;
+            int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                    + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        int[] m = this.midstate;
+        digest[0] = m[0] + a;
+        digest[1] = m[1] + b;
+        digest[2] = m[2] + c;
+        digest[3] = m[3] + d;
+        digest[4] = m[4] + e;
+        digest[5] = m[5] + f;
+        digest[6] = m[6] + g;
+        digest[7] = m[7] + h;
+    }
+
+    /**
+     * 从第 from 个字开始计算消息扩展
+     *
+     * @param w
+     * @param from
+     */
+    private static void expand(int[] w, int from) {
+        for (int i = from; i < 64; i++) {
+            w[i] = schedule(w, i);
+        }
+    }
+
+    /**
+     * 计算消息扩展的第i个字
+     *
+     * @param w
+     * @param i
+     * @return
+     */
+    private static int schedule(int[] w, int i) {
+        int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+        int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+        return w[i - 16] + s0 + w[i - 7] + s1;
+    }
+
+    /**
+     * 压缩一个完成消息扩展的分组，结果写回state
+     *
+     * @param state 哈希状态
+     * @param w     完成消息扩展的消息数组
+     */
+    private static void compress(int[] state, int[] w) {
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int i = 0; i < 64; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + K[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+
+    /**
+     * 执行一轮压缩运算
+     *
+     * @param v 工作变量 a..h
+     * @param w 本轮的消息字
+     * @param k 本轮的常量
+     */
+    private static void round(int[] v, int w, int k) {
+        int s1 = Integer.rotateRight(v[4], 6) ^ Integer.rotateRight(v[4], 11) ^ Integer.rotateRight(v[4], 25);
+        int ch = (v[4] & v[5]) ^ (~v[4] & v[6]);
+        int t1 = v[7] + s1 + ch + k + w;
+        int s0 = Integer.rotateRight(v[0], 2) ^ Integer.rotateRight(v[0], 13) ^ Integer.rotateRight(v[0], 22);
+        int maj = (v[0] & v[1]) ^ (v[0] & v[2]) ^ (v[1] & v[2]);
+        System.arraycopy(v, 0, v, 1, 7);
+        v[4] += t1;
+        v[0] = t1 + s0 + maj;
+    }
+}
@@ -1,10 +1,13 @@
 package com.yxz.consensus;
 
 import com.yxz.block.Block;
-import com.yxz.util.StringUtil;
+import com.yxz.block.BlockHeader;
 import lombok.Data;
 
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 @Data
 public class ProofOfWork {
@@ -14,6 +17,11 @@ public class ProofOfWork {
      */
     public static final int TARGET_BITS = 8;
 
+    /**
+     * 挖矿线程数的系统属性
+     */
+    public static final String MINER_THREADS_PROPERTY = "blockchain.minerThreads";
+
     /**
      * 区块
      */
@@ -24,6 +32,11 @@ public class ProofOfWork {
      */
     private BigInteger target;
 
+    /**
+     * 区块头，同一次挖矿只计算一次
+     */
+    private volatile BlockHeader header;
+
     public ProofOfWork(Block block, BigInteger target) {
         this.block = block;
         this.target = target;
@@ -45,52 +58,147 @@ public class ProofOfWork {
 
     /**
      * 运行工作量证明，开始挖矿，找到小于难度目标值的Hash
+     * 挖矿线程数由系统属性 blockchain.minerThreads 决定，默认单线程
      *
      * @return
      */
     public PowResult run() {
-        long nonce = 0;
-        String shaHex = "";
+        return run(Integer.getInteger(MINER_THREADS_PROPERTY, 1));
+    }
+
+    /**
+     * 使用指定数量的线程运行工作量证明
+     * <p>
+     * 多线程时第i个线程依次尝试 i, i + threads, i + 2 * threads ... 的nonce，
+     * 找到解的线程记录目前最小的nonce，其余线程尝试的nonce超过它时停止，
+     * 因此得到的总是最小的有效nonce，与单线程挖出的区块完全相同
+     *
+     * @param threads 挖矿线程数
+     * @return
+     */
+    public PowResult run(int threads) {
         System.out.printf("Mining the block containing：%s \n", this.getBlock().getTransactions());
 
         long startTime = System.currentTimeMillis();
-        while (nonce < Long.MAX_VALUE) {
-            String data = this.prepareData(nonce);
-            shaHex = StringUtil.applySha256(data);
-            if (new BigInteger(shaHex, 16).compareTo(this.target) == -1) {
-                System.out.printf("Elapsed Time: %s seconds \n", (float) (System.currentTimeMillis() - startTime) / 1000);
-                System.out.printf("correct hash Hex: %s \n\n", shaHex);
-                break;
-            } else {
-                //System.out.println(nonce + "\n");
-                nonce++;
+        PowResult result = threads <= 1 ? this.search() : this.searchParallel(threads);
+        System.out.printf("Elapsed Time: %s seconds \n", (float) (System.currentTimeMillis() - startTime) / 1000);
+        System.out.printf("correct hash Hex: %s \n\n", result.getHash());
+        return result;
+    }
+
+    /**
+     * 在当前线程中依次尝试nonce
+     *
+     * @return
+     */
+    private PowResult search() {
+        BlockHeader header = this.getHeader();
+        HeaderHasher hasher = new HeaderHasher(header.toBytes(), this.target);
+        for (long nonce = 0; nonce < Long.MAX_VALUE; nonce++) {
+            if (hasher.meetsTarget(nonce)) {
+                return new PowResult(nonce, header.hash(nonce));
             }
         }
-        return new PowResult(nonce, shaHex);
+        System.out.println("Fail to mine block ! nonce space is exhausted ! ");
+        throw new RuntimeException("Fail to mine block ! nonce space is exhausted ! ");
     }
 
     /**
-     * 验证区块是否有效
+     * 多个线程按步长划分nonce空间并行尝试
      *
+     * @param threads 挖矿线程数
      * @return
      */
-    public boolean validate() {
-        String data = this.prepareData(this.getBlock().getNonce());
-        return new BigInteger(StringUtil.applySha256(data), 16).compareTo(this.target) == -1;
+    private PowResult searchParallel(int threads) {
+        // 区块头只计算一次，各线程共享
+        BlockHeader header = this.getHeader();
+        AtomicLong bestNonce = new AtomicLong(Long.MAX_VALUE);
+        LongAdder hashes = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            long firstNonce = i;
+            workers[i] = new Thread(() -> {
+                HeaderHasher hasher = new HeaderHasher(header.toBytes(), this.target);
+                long attempts = 0;
+                for (long nonce = firstNonce; nonce < bestNonce.get(); nonce += threads) {
+                    attempts++;
+                    if (hasher.meetsTarget(nonce)) {
+                        bestNonce.accumulateAndGet(nonce, Math::min);
+                        break;
+                    }
+                    if (nonce > Long.MAX_VALUE - threads) {
+                        break;
+                    }
+                }
+                hashes.add(attempts);
+            }, "pow-miner-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Fail to mine block ! mining is interrupted ! ");
+            throw new RuntimeException("Fail to mine block ! mining is interrupted ! ", e);
+        }
+        long nonce = bestNonce.get();
+        if (nonce == Long.MAX_VALUE) {
+            System.out.println("Fail to mine block ! nonce space is exhausted ! ");
+            throw new RuntimeException("Fail to mine block ! nonce space is exhausted ! ");
+        }
+        System.out.printf("Mining threads: %d, hashes: %d \n", threads, hashes.sum());
+        return new PowResult(nonce, header.hash(nonce));
     }
 
     /**
-     * 准备数据
+     * 验证区块是否有效，不接受旧版本的区块
      *
-     * @param nonce
      * @return
      */
-    private String prepareData(long nonce) {
-        return this.getBlock().getPreHash() +
-                this.getBlock().hashTransaction() + this.getBlock().getTimeStamp() + TARGET_BITS + nonce;
+    public boolean validate() {
+        return validate(-1);
     }
 
+    /**
+     * 验证区块是否有效
+     * <p>
+     * 区块包含交易时根据交易重新计算merkle根，与记录的merkle根不一致的区块无效；
+     * 已裁剪的区块头没有交易，使用记录的merkle根。
+     * 旧版本的区块没有记录merkle根，挖矿时的数据无法还原，只有高度不超过 legacyHeaderHeight 时
+     * 检查区块的Hash值是否满足难度目标，其余没有merkle根的区块均无效
+     *
+     * @param legacyHeaderHeight 旧版本区块的最高高度，见 ChainStore.getLegacyHeaderHeight
+     * @return
+     */
+    public boolean validate(long legacyHeaderHeight) {
+        Block block = this.getBlock();
+        if (block.getMerkleRoot() == null) {
+            if (block.getHeight() > legacyHeaderHeight) {
+                return false;
+            }
+            String hash = block.getHash();
+            return hash != null && !hash.isEmpty() && new BigInteger(hash, 16).compareTo(this.target) == -1;
+        }
+        if (block.getTransactions() != null && !Arrays.equals(block.hashTransaction(), block.getMerkleRoot())) {
+            return false;
+        }
+        String shaHex = BlockHeader.fromBlock(block, TARGET_BITS).hash(block.getNonce());
+        return shaHex.equals(block.getHash()) && new BigInteger(shaHex, 16).compareTo(this.target) == -1;
+    }
 
-
+    /**
+     * 获取区块头，同一次挖矿只计算一次merkle根
+     *
+     * @return
+     */
+    public BlockHeader getHeader() {
+        if (this.header == null) {
+            this.header = BlockHeader.fromBlock(this.getBlock(), TARGET_BITS);
+        }
+        return this.header;
+    }
 
 }
@@ -0,0 +1,740 @@
+package com.yxz.store;
+
+import com.yxz.block.Block;
+import com.yxz.transaction.BlockUndo;
+import com.yxz.transaction.MuHash;
+import com.yxz.transaction.OutPoint;
+import com.yxz.transaction.TXLocation;
+import com.yxz.transaction.TXOutput;
+import com.yxz.util.ByteUtil;
+import com.yxz.util.SerializeUtil;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+
+/**
+ * 基于有序键值存储的区块链存储
+ * <p>
+ * 每一条记录单独占用一个键，写入代价只与记录本身大小相关：
+ * b|区块哈希 -> 区块数据，具体内容由实现决定（例如区块在区块文件中的位置）
+ * c|交易ID:输出索引 -> 未花费的交易输出
+ * t|交易ID   -> 交易所在区块及位置
+ * h|区块高度 -> 区块哈希
+ * a|公钥哈希|交易ID:输出索引 -> 地址索引，该交易输出属于该地址并且未花费
+ * p|区块哈希 -> 已裁剪区块的区块头，区块体已被丢弃
+ * u|区块哈希 -> 区块的撤销数据，断开区块时用于恢复UTXO池
+ * l          -> 最新一个区块的哈希值
+ * p          -> 已裁剪的最高区块高度，该高度及以下的区块体均不可用
+ * s          -> 磁盘上的UTXO池对应的区块哈希，开启UTXO缓存时可能落后于最新区块，空字符串表示UTXO池为空
+ * <p>
+ * 子类只需要提供键值的读取、前缀遍历、批量写入以及区块数据的存取
+ *
+ */
+public abstract class AbstractChainStore implements ChainStore {
+
+    /**
+     * 区块数据键前缀，('b|' + blockhash, 区块数据)
+     */
+    protected static final String BLOCK_KEY_PREFIX = "b|";
+
+    /**
+     * UTXO数据键前缀，('c|' + txid + ':' + index, 交易输出)
+     */
+    protected static final String UTXO_KEY_PREFIX = "c|";
+
+    /**
+     * 交易索引键前缀，('t|' + txid, 交易所在区块及位置)
+     */
+    protected static final String TX_INDEX_KEY_PREFIX = "t|";
+
+    /**
+     * 地址索引键前缀，('a|' + publicKeyHash + '|' + txid + ':' + index, 空)
+     */
+    protected static final String ADDRESS_INDEX_KEY_PREFIX = "a|";
+
+    /**
+     * 地址余额键前缀，('w|' + publicKeyHash, 余额)，余额为0的地址没有记录
+     */
+    protected static final String BALANCE_KEY_PREFIX = "w|";
+
+    /**
+     * 区块高度索引键前缀，('h|' + height, blockhash)
+     */
+    protected static final String HEIGHT_INDEX_KEY_PREFIX = "h|";
+
+    /**
+     * 已裁剪区块的区块头键前缀，('p|' + blockhash, 不含交易的区块)
+     */
+    protected static final String PRUNED_HEADER_KEY_PREFIX = "p|";
+
+    /**
+     * 区块撤销数据键前缀，('u|' + blockhash, 撤销数据)
+     */
+    protected static final String UNDO_KEY_PREFIX = "u|";
+
+    /**
+     * 获取最新一个区块的哈希值的键值，('l', lastblockhash)
+     */
+    protected static final String LAST_BLOCK_KEY = "l";
+
+    /**
+     * 已裁剪的最高区块高度的键值，('p', height)
+     */
+    protected static final String PRUNED_HEIGHT_KEY = "p";
+
+    /**
+     * 磁盘上的UTXO池对应的区块哈希的键值，('s', blockhash)
+     */
+    protected static final String CHAINSTATE_HASH_KEY = "s";
+
+    /**
+     * 磁盘上的UTXO池的承诺值的键值，('m', MuHash)，没有记录表示空集合
+     */
+    protected static final String UTXO_COMMITMENT_KEY = "m";
+
+    /**
+     * 旧版本区块的最高高度的键值，('g', height)，由数据迁移或加载快照时写入
+     */
+    protected static final String LEGACY_HEADER_HEIGHT_KEY = "g";
+
+    /**
+     * 区块连接批量写入时是否同步刷盘，关闭后性能更好但宕机可能丢失最近写入的区块
+     */
+    @Getter
+    @Setter
+    private boolean syncWrites = true;
+
+    /**
+     * 反序列化后区块的缓存，可通过setBlockCache调整大小
+     */
+    @Getter
+    @Setter
+    private BlockCache blockCache = new BlockCache(BlockCache.DEFAULT_MAX_ENTRIES, BlockCache.DEFAULT_MAX_BYTES);
+
+    /**
+     * 裁剪模式下至少保留的最近区块数量，0表示不限制
+     */
+    @Getter
+    @Setter
+    private long pruneKeepBlocks;
+
+    /**
+     * 裁剪模式下区块体占用磁盘的目标上限，单位字节，0表示不限制
+     */
+    @Getter
+    @Setter
+    private long pruneTargetBytes;
+
+    /**
+     * 回写式UTXO缓存，默认不开启
+     */
+    private final UTXOCache utxoCache = new UTXOCache(0, this::loadUTXO);
+
+
+    /**
+     * 读取键对应的值
+     *
+     * @param key
+     * @return 不存在时返回null
+     */
+    protected abstract byte[] get(String key);
+
+    /**
+     * 按前缀逐条遍历数据，不会把全部数据读入内存
+     *
+     * @param keyPrefix 键前缀
+     * @param consumer  按键排序依次接收去掉前缀后的键以及值
+     */
+    protected abstract void forEachByPrefix(String keyPrefix, BiConsumer<String, byte[]> consumer);
+
+    /**
+     * 删除指定前缀的全部数据
+     *
+     * @param keyPrefix 键前缀
+     */
+    protected abstract void deleteByPrefix(String keyPrefix);
+
+    /**
+     * 原子地写入一批数据
+     *
+     * @param pending 待写入的数据，值为null表示删除
+     * @param sync    是否同步刷盘
+     */
+    protected abstract void write(Map<String, byte[]> pending, boolean sync);
+
+    /**
+     * 保存序列化后的区块
+     *
+     * @param blockBytes 序列化后的区块
+     * @return 保存在 b| 键下的值
+     */
+    protected abstract byte[] storeBlockBytes(byte[] blockBytes);
+
+    /**
+     * 读取序列化后的区块
+     *
+     * @param storedValue 保存在 b| 键下的值
+     * @return 序列化后的区块
+     */
+    protected abstract byte[] loadBlockBytes(byte[] storedValue);
+
+
+    /**
+     * 按前缀读取数据，只用于数据量有限的前缀
+     *
+     * @param keyPrefix 键前缀
+     * @return 去掉前缀后的键 -> 值，按键排序
+     */
+    protected Map<String, byte[]> scanByPrefix(String keyPrefix) {
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        forEachByPrefix(keyPrefix, result::put);
+        return result;
+    }
+
+    /**
+     * 字符串转为存储的字节
+     *
+     * @param value
+     * @return
+     */
+    protected static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 存储的字节转为字符串
+     *
+     * @param bytes
+     * @return
+     */
+    protected static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void putLastBlockHash(String topBlockHash) {
+        BlockConnectBatch batch = beginBlockConnect();
+        batch.putLastBlockHash(topBlockHash);
+        batch.commit();
+    }
+
+    @Override
+    public String getLastBlockHash() {
+        byte[] lastBlockHashBytes = get(LAST_BLOCK_KEY);
+        if (lastBlockHashBytes != null) {
+            return string(lastBlockHashBytes);
+        }
+        return "";
+    }
+
+    @Override
+    public void putBlock(Block block) {
+        BlockConnectBatch batch = beginBlockConnect();
+        batch.putBlock(block);
+        batch.commit();
+    }
+
+    /**
+     * 查询区块，优先从区块缓存中读取，缓存中的区块对象不应被修改
+     *
+     * @param blockHash
+     * @return
+     */
+    @Override
+    public Block getBlock(String blockHash) {
+        Block block = blockCache.get(blockHash);
+        if (block != null) {
+            return block;
+        }
+        byte[] storedValue = get(BLOCK_KEY_PREFIX + blockHash);
+        if (storedValue != null) {
+            byte[] blockBytes = loadBlockBytes(storedValue);
+            block = (Block) SerializeUtil.deserialize(blockBytes);
+            blockCache.put(block, blockBytes.length);
+            return block;
+        }
+        if (get(PRUNED_HEADER_KEY_PREFIX + blockHash) != null) {
+            System.out.println("Fail to get block ! block body is pruned ! hash=" + blockHash);
+            throw new RuntimeException("Fail to get block ! block body is pruned ! hash=" + blockHash);
+        }
+        return null;
+    }
+
+    @Override
+    public Block getBlockHeader(String blockHash) {
+        byte[] headerBytes = get(PRUNED_HEADER_KEY_PREFIX + blockHash);
+        if (headerBytes != null) {
+            return (Block) SerializeUtil.deserialize(headerBytes);
+        }
+        Block block = getBlock(blockHash);
+        if (block == null) {
+            return null;
+        }
+        return headerOf(block);
+    }
+
+    @Override
+    public BlockUndo getBlockUndo(String blockHash) {
+        byte[] undoBytes = get(UNDO_KEY_PREFIX + blockHash);
+        if (undoBytes != null) {
+            return (BlockUndo) SerializeUtil.deserialize(undoBytes);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isBlockPruned(String blockHash) {
+        return get(PRUNED_HEADER_KEY_PREFIX + blockHash) != null;
+    }
+
+    @Override
+    public long getPrunedHeight() {
+        byte[] prunedHeightBytes = get(PRUNED_HEIGHT_KEY);
+        if (prunedHeightBytes != null) {
+            return Long.parseLong(string(prunedHeightBytes));
+        }
+        return -1;
+    }
+
+    @Override
+    public long getLegacyHeaderHeight() {
+        byte[] legacyHeaderHeightBytes = get(LEGACY_HEADER_HEIGHT_KEY);
+        if (legacyHeaderHeightBytes != null) {
+            return Long.parseLong(string(legacyHeaderHeightBytes));
+        }
+        return -1;
+    }
+
+    /**
+     * 是否开启了裁剪模式
+     *
+     * @return
+     */
+    public boolean isPruneMode() {
+        return pruneKeepBlocks > 0 || pruneTargetBytes > 0;
+    }
+
+    @Override
+    public String getBlockHash(long height) {
+        byte[] blockHashBytes = get(HEIGHT_INDEX_KEY_PREFIX + height);
+        if (blockHashBytes != null) {
+            return string(blockHashBytes);
+        }
+        return "";
+    }
+
+    @Override
+    public TXLocation getTXLocation(String txId) {
+        byte[] locationBytes = get(TX_INDEX_KEY_PREFIX + txId);
+        if (locationBytes != null) {
+            return (TXLocation) SerializeUtil.deserialize(locationBytes);
+        }
+        return null;
+    }
+
+    @Override
+    public void cleanTXIndex() {
+        try {
+            deleteByPrefix(TX_INDEX_KEY_PREFIX);
+        } catch (Exception e) {
+            System.out.println("Fail to clear tx index ! ");
+            throw new RuntimeException("Fail to clear tx index ! ", e);
+        }
+    }
+
+    @Override
+    public synchronized void cleanChainStateBucket() {
+        try {
+            utxoCache.clear();
+            deleteByPrefix(UTXO_KEY_PREFIX);
+            deleteByPrefix(ADDRESS_INDEX_KEY_PREFIX);
+            deleteByPrefix(BALANCE_KEY_PREFIX);
+            Map<String, byte[]> pending = new LinkedHashMap<>();
+            pending.put(CHAINSTATE_HASH_KEY, bytes(""));
+            pending.put(UTXO_COMMITMENT_KEY, null);
+            write(pending, true);
+        } catch (Exception e) {
+            System.out.println("Fail to clear chainstate bucket ! ");
+            throw new RuntimeException("Fail to clear chainstate bucket ! ", e);
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> getChainstateBucket() {
+        flushUTXOCache();
+        return scanByPrefix(UTXO_KEY_PREFIX);
+    }
+
+    @Override
+    public void forEachChainstateEntry(BiConsumer<String, byte[]> consumer) {
+        flushUTXOCache();
+        forEachByPrefix(UTXO_KEY_PREFIX, consumer);
+    }
+
+    /**
+     * 通过地址索引查询交易输出，地址索引只在UTXO写入存储时维护，因此需要合并缓存中尚未写入的变更
+     *
+     * @param publicKeyHash 公钥Hash
+     * @return
+     */
+    @Override
+    public Set<OutPoint> getUTXOOutPoints(byte[] publicKeyHash) {
+        String address = Hex.encodeHexString(publicKeyHash);
+        Set<String> keys = new LinkedHashSet<>();
+        forEachByPrefix(addressIndexPrefix(address), (key, value) -> keys.add(key));
+        for (Map.Entry<String, TXOutput> entry : utxoCache.dirtyEntries().entrySet()) {
+            if (address.equals(addressOf(entry.getValue()))) {
+                keys.add(entry.getKey());
+            } else {
+                keys.remove(entry.getKey());
+            }
+        }
+        Set<OutPoint> outPoints = new LinkedHashSet<>();
+        for (String key : keys) {
+            outPoints.add(OutPoint.parse(key));
+        }
+        return outPoints;
+    }
+
+    /**
+     * 查询地址余额，读取一条余额记录后加上缓存中尚未写入的变更
+     *
+     * @param publicKeyHash 公钥Hash
+     * @return
+     */
+    @Override
+    public synchronized long getBalance(byte[] publicKeyHash) {
+        String address = Hex.encodeHexString(publicKeyHash);
+        return loadBalance(address) + utxoCache.getBalanceDelta(address);
+    }
+
+    /**
+     * 查询UTXO池的承诺值，读取磁盘上的承诺值后合并缓存中尚未写入的变更，不遍历UTXO
+     *
+     * @return 32字节的哈希值
+     */
+    @Override
+    public synchronized byte[] getUTXOCommitment() {
+        MuHash commitment = loadUTXOCommitment();
+        commitment.combine(utxoCache.getCommitmentDelta());
+        return commitment.digest();
+    }
+
+    /**
+     * 直接从存储中读取UTXO池的承诺值
+     *
+     * @return
+     */
+    private MuHash loadUTXOCommitment() {
+        byte[] commitmentBytes = get(UTXO_COMMITMENT_KEY);
+        return commitmentBytes == null ? new MuHash() : MuHash.fromBytes(commitmentBytes);
+    }
+
+    /**
+     * 直接从存储中读取地址余额，不经过缓存
+     *
+     * @param address 公钥Hash的十六进制表示
+     * @return 没有记录时返回0
+     */
+    private long loadBalance(String address) {
+        byte[] balanceBytes = get(BALANCE_KEY_PREFIX + address);
+        return balanceBytes == null ? 0 : Long.parseLong(string(balanceBytes));
+    }
+
+    @Override
+    public void putUTXO(String txId, int index, TXOutput utxo) {
+        try {
+            BlockConnectBatch batch = beginBlockConnect();
+            batch.putUTXO(txId, index, utxo);
+            batch.writeThrough();
+            batch.commit();
+        } catch (Exception e) {
+            System.out.println("Fail to put UTXO into chainstate bucket ! key=" + OutPoint.key(txId, index));
+            throw new RuntimeException("Fail to put UTXO into chainstate bucket ! key=" + OutPoint.key(txId, index), e);
+        }
+    }
+
+    @Override
+    public TXOutput getUTXO(String txId, int index) {
+        String key = OutPoint.key(txId, index);
+        if (utxoCache.isEnabled()) {
+            return utxoCache.get(key);
+        }
+        return loadUTXO(key);
+    }
+
+    /**
+     * 查询一笔交易中全部未花费的交易输出，合并缓存中尚未写入的变更
+     *
+     * @param txId 交易ID
+     * @return
+     */
+    @Override
+    public SortedMap<Integer, TXOutput> getUTXOs(String txId) {
+        String keyPrefix = OutPoint.keyPrefix(txId);
+        SortedMap<Integer, TXOutput> utxos = new TreeMap<>();
+        forEachByPrefix(UTXO_KEY_PREFIX + keyPrefix, (index, utxoBytes) ->
+                utxos.put(Integer.parseInt(index), (TXOutput) SerializeUtil.deserialize(utxoBytes)));
+        for (Map.Entry<String, TXOutput> entry : utxoCache.dirtyEntries().entrySet()) {
+            if (entry.getKey().startsWith(keyPrefix)) {
+                int index = OutPoint.parse(entry.getKey()).getIndex();
+                if (entry.getValue() == null) {
+                    utxos.remove(index);
+                } else {
+                    utxos.put(index, entry.getValue());
+                }
+            }
+        }
+        return utxos;
+    }
+
+    /**
+     * 直接从存储中读取交易输出，不经过缓存
+     *
+     * @param key 交易输出位置
+     * @return 不存在时返回null
+     */
+    private TXOutput loadUTXO(String key) {
+        byte[] utxoBytes = get(UTXO_KEY_PREFIX + key);
+        if (utxoBytes != null) {
+            return (TXOutput) SerializeUtil.deserialize(utxoBytes);
+        }
+        return null;
+    }
+
+    @Override
+    public void deleteUTXO(String txId, int index) {
+        try {
+            BlockConnectBatch batch = beginBlockConnect();
+            batch.deleteUTXO(txId, index);
+            batch.writeThrough();
+            batch.commit();
+        } catch (Exception e) {
+            System.out.println("Fail to delete UTXO by key ! key=" + OutPoint.key(txId, index));
+            throw new RuntimeException("Fail to delete UTXO by key ! key=" + OutPoint.key(txId, index), e);
+        }
+    }
+
+    @Override
+    public BlockConnectBatch beginBlockConnect() {
+        return new BlockConnectBatch(this);
+    }
+
+    /**
+     * 提交区块连接批次
+     * <p>
+     * 未开启UTXO缓存或者要求直接写入时，UTXO变更连同缓存中尚未写入的变更与其余数据在同一批次中写入；
+     * 否则其余数据立即写入，UTXO变更只进入缓存，缓存超过内存上限时再整体刷新。
+     * 磁盘上的UTXO池落后于最新区块时，s 键记录的区块哈希保证重新打开存储后可以从该区块之后重放。
+     *
+     * @param pending        待写入的数据，值为null表示删除
+     * @param utxoChanges    UTXO变更，值为null表示删除
+     * @param chainstateHash 提交后UTXO池对应的区块哈希，为null时表示与最新区块一致
+     * @param writeThrough   是否直接写入存储
+     */
+    synchronized void commit(Map<String, byte[]> pending, Map<String, TXOutput> utxoChanges,
+                             String chainstateHash, boolean writeThrough) {
+        Map<String, byte[]> batch = new LinkedHashMap<>(pending);
+        if (writeThrough || !utxoCache.isEnabled()) {
+            Map<String, TXOutput> changes = utxoCache.dirtyEntries();
+            changes.putAll(utxoChanges);
+            appendUTXOWrites(batch, changes);
+            batch.put(CHAINSTATE_HASH_KEY, bytes(chainstateHash != null ? chainstateHash : getLastBlockHash()));
+            write(batch, isSyncWrites());
+            utxoCache.clear();
+            return;
+        }
+        if (get(CHAINSTATE_HASH_KEY) == null) {
+            // 磁盘上的UTXO池仍然对应提交前的最新区块
+            batch.put(CHAINSTATE_HASH_KEY, bytes(getLastBlockHash()));
+        }
+        write(batch, isSyncWrites());
+        if (!utxoChanges.isEmpty() || chainstateHash != null) {
+            utxoCache.apply(utxoChanges);
+            utxoCache.setBestBlockHash(chainstateHash != null ? chainstateHash : getLastBlockHash());
+        }
+        if (utxoCache.isFull()) {
+            flushUTXOCache();
+        }
+    }
+
+    @Override
+    public synchronized void flushUTXOCache() {
+        String bestBlockHash = utxoCache.getBestBlockHash();
+        if (bestBlockHash == null) {
+            utxoCache.clear();
+            return;
+        }
+        try {
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            appendUTXOWrites(batch, utxoCache.dirtyEntries());
+            batch.put(CHAINSTATE_HASH_KEY, bytes(bestBlockHash));
+            write(batch, true);
+            utxoCache.clear();
+        } catch (Exception e) {
+            System.out.println("Fail to flush UTXO cache ! ");
+            throw new RuntimeException("Fail to flush UTXO cache ! ", e);
+        }
+    }
+
+    @Override
+    public String getChainstateHash() {
+        byte[] chainstateHashBytes = get(CHAINSTATE_HASH_KEY);
+        if (chainstateHashBytes != null) {
+            return string(chainstateHashBytes);
+        }
+        return getLastBlockHash();
+    }
+
+    /**
+     * UTXO缓存的内存上限，单位字节，0表示不使用缓存
+     *
+     * @return
+     */
+    public long getUTXOCacheBytes() {
+        return utxoCache.getMaxBytes();
+    }
+
+    /**
+     * 调整UTXO缓存的内存上限，调整前先把缓存写入存储
+     *
+     * @param utxoCacheBytes 单位字节，0表示不使用缓存
+     */
+    public synchronized void setUTXOCacheBytes(long utxoCacheBytes) {
+        flushUTXOCache();
+        utxoCache.setMaxBytes(utxoCacheBytes);
+    }
+
+    /**
+     * UTXO缓存当前占用内存的估算值
+     *
+     * @return
+     */
+    public long getUTXOCacheUsage() {
+        return utxoCache.getCurrentBytes();
+    }
+
+    /**
+     * 把UTXO变更加入写入批次，同时维护地址索引：花费交易输出只需删除一条UTXO以及一条地址索引
+     *
+     * @param batch   写入批次
+     * @param changes 交易输出位置 -> 变更后的交易输出，值为null表示删除
+     */
+    private void appendUTXOWrites(Map<String, byte[]> batch, Map<String, TXOutput> changes) {
+        Map<String, Long> balanceDeltas = new HashMap<>();
+        MuHash commitmentDelta = new MuHash();
+        for (Map.Entry<String, TXOutput> change : changes.entrySet()) {
+            String key = change.getKey();
+            TXOutput utxo = change.getValue();
+            TXOutput oldUTXO = loadUTXO(key);
+            String oldAddress = addressOf(oldUTXO);
+            String newAddress = addressOf(utxo);
+            if (oldAddress != null) {
+                balanceDeltas.merge(oldAddress, (long) -oldUTXO.getValue(), Long::sum);
+                commitmentDelta.remove(commitmentElementOf(key, oldUTXO));
+            }
+            if (newAddress != null) {
+                balanceDeltas.merge(newAddress, (long) utxo.getValue(), Long::sum);
+                commitmentDelta.insert(commitmentElementOf(key, utxo));
+            }
+            if (oldAddress != null && !oldAddress.equals(newAddress)) {
+                batch.put(addressIndexPrefix(oldAddress) + key, null);
+            }
+            if (newAddress != null && !newAddress.equals(oldAddress)) {
+                batch.put(addressIndexPrefix(newAddress) + key, ByteUtil.EMPTY_ARRAY);
+            }
+            batch.put(UTXO_KEY_PREFIX + key, utxo == null ? null : SerializeUtil.serialize(utxo));
+        }
+        for (Map.Entry<String, Long> delta : balanceDeltas.entrySet()) {
+            if (delta.getValue() == 0) {
+                continue;
+            }
+            long balance = loadBalance(delta.getKey()) + delta.getValue();
+            batch.put(BALANCE_KEY_PREFIX + delta.getKey(), balance == 0 ? null : bytes(String.valueOf(balance)));
+        }
+        if (!changes.isEmpty()) {
+            MuHash commitment = loadUTXOCommitment();
+            commitment.combine(commitmentDelta);
+            batch.put(UTXO_COMMITMENT_KEY, commitment.toBytes());
+        }
+    }
+
+    /**
+     * UTXO承诺值中的元素：交易输出位置、金额以及公钥Hash
+     *
+     * @param key  交易输出位置
+     * @param utxo 交易输出
+     * @return
+     */
+    protected static byte[] commitmentElementOf(String key, TXOutput utxo) {
+        byte[] keyBytes = bytes(key);
+        byte[] publicKeyHash = utxo.getPublicKeyHash() == null ? ByteUtil.EMPTY_ARRAY : utxo.getPublicKeyHash();
+        return ByteBuffer.allocate(4 + keyBytes.length + 4 + publicKeyHash.length)
+                .putInt(keyBytes.length).put(keyBytes)
+                .putInt(utxo.getValue())
+                .put(publicKeyHash)
+                .array();
+    }
+
+    /**
+     * 区块头，即不含交易的区块
+     *
+     * @param block
+     * @return
+     */
+    protected static Block headerOf(Block block) {
+        return new Block(block.getHash(), block.getPreHash(), null, block.getTimeStamp(), block.getNonce(), block.getHeight(),
+                block.getMerkleRoot());
+    }
+
+    /**
+     * 地址索引的键前缀
+     *
+     * @param address 公钥Hash的十六进制表示
+     * @return
+     */
+    protected static String addressIndexPrefix(String address) {
+        return ADDRESS_INDEX_KEY_PREFIX + address + "|";
+    }
+
+    /**
+     * 交易输出所属的地址
+     *
+     * @param utxo
+     * @return 公钥Hash的十六进制表示，交易输出为null时返回null
+     */
+    protected static String addressOf(TXOutput utxo) {
+        if (utxo == null) {
+            return null;
+        }
+        return Hex.encodeHexString(utxo.getPublicKeyHash());
+    }
+
+    /**
+     * 交易输出中出现的全部地址
+     *
+     * @param utxos
+     * @return 公钥Hash的十六进制表示
+     */
+    protected static Set<String> addressesOf(TXOutput[] utxos) {
+        Set<String> addresses = new HashSet<>();
+        if (utxos != null) {
+            for (TXOutput utxo : utxos) {
+                addresses.add(Hex.encodeHexString(utxo.getPublicKeyHash()));
+            }
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,150 @@
+package com.yxz.store;
+
+import com.yxz.block.Block;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 反序列化后区块的LRU缓存
+ * <p>
+ * 同时按条目数量和近似字节数（区块序列化后的长度）限制缓存大小，超过任一上限时淘汰最久未使用的区块。
+ * 缓存中的区块对象会被多次返回，调用方不应修改。
+ *
+ */
+public class BlockCache {
+
+    /**
+     * 默认最多缓存的区块数量
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    /**
+     * 默认最多缓存的区块字节数
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * 缓存条目
+     */
+    private static class Entry {
+        private final Block block;
+        private final int size;
+
+        private Entry(Block block, int size) {
+            this.block = block;
+            this.size = size;
+        }
+    }
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    /**
+     * 按访问顺序排列，链表头部为最久未使用的区块
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long currentBytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    public BlockCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 查询缓存的区块
+     *
+     * @param blockHash 区块哈希
+     * @return 未命中时返回null
+     */
+    public synchronized Block get(String blockHash) {
+        Entry entry = entries.get(blockHash);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.block;
+    }
+
+    /**
+     * 缓存区块
+     *
+     * @param block 区块
+     * @param size  区块序列化后的字节数
+     */
+    public synchronized void put(Block block, int size) {
+        if (maxEntries <= 0 || size > maxBytes) {
+            return;
+        }
+        Entry old = entries.put(block.getHash(), new Entry(block, size));
+        if (old != null) {
+            currentBytes -= old.size;
+        }
+        currentBytes += size;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || currentBytes > maxBytes) && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            currentBytes -= eldest.size;
+            evictionCount++;
+        }
+    }
+
+    /**
+     * 移除缓存的区块
+     *
+     * @param blockHash 区块哈希
+     */
+    public synchronized void remove(String blockHash) {
+        Entry entry = entries.remove(blockHash);
+        if (entry != null) {
+            currentBytes -= entry.size;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 命中率
+     *
+     * @return 没有任何访问时返回0
+     */
+    public synchronized double getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BlockCache(entries=%d, bytes=%d, hits=%d, misses=%d, evictions=%d, hitRate=%.2f)",
+                entries.size(), currentBytes, hitCount, missCount, evictionCount, getHitRate());
+    }
+}
@@ -0,0 +1,222 @@
+package com.yxz.store;
+
+import com.yxz.block.Block;
+import com.yxz.transaction.BlockUndo;
+import com.yxz.transaction.OutPoint;
+import com.yxz.transaction.TXLocation;
+import com.yxz.transaction.TXOutput;
+import com.yxz.transaction.Transaction;
+import com.yxz.util.SerializeUtil;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 区块连接的批量写入，区块、UTXO变更以及最新区块哈希在提交时原子写入
+ * <p>
+ * 提交前的写入保存在内存中，同一批次内的查询可以读到尚未提交的数据，
+ * 保证同一区块内后面的交易能够花费前面交易的输出。
+ * 开启UTXO缓存时，UTXO变更提交到缓存中，由存储在缓存超过内存上限或者关闭时批量写入；
+ * 调用 writeThrough 的批次则连同缓存中尚未写入的变更一起直接写入存储
+ *
+ */
+public class BlockConnectBatch {
+
+    private final AbstractChainStore store;
+
+    /**
+     * 待写入的数据，值为null表示删除
+     */
+    private final Map<String, byte[]> pending = new LinkedHashMap<>();
+
+    /**
+     * 待写入的UTXO变更，交易输出位置 -> 交易输出，值为null表示删除
+     */
+    private final Map<String, TXOutput> utxoChanges = new LinkedHashMap<>();
+
+    /**
+     * 本批次写入的最新区块哈希
+     */
+    private String lastBlockHash;
+
+    /**
+     * 本批次提交后UTXO池对应的区块哈希
+     */
+    private String chainstateHash;
+
+    /**
+     * 是否绕过UTXO缓存直接写入存储
+     */
+    private boolean writeThrough;
+
+    BlockConnectBatch(AbstractChainStore store) {
+        this.store = store;
+    }
+
+    /**
+     * 保存区块，同时建立区块高度索引并为区块中的每笔交易建立索引
+     * 区块数据可能立即写入区块存储，但只有批次提交后才会被引用
+     *
+     * @param block
+     */
+    public void putBlock(Block block) {
+        byte[] storedValue = store.storeBlockBytes(SerializeUtil.serialize(block));
+        pending.put(AbstractChainStore.BLOCK_KEY_PREFIX + block.getHash(), storedValue);
+        pending.put(AbstractChainStore.HEIGHT_INDEX_KEY_PREFIX + block.getHeight(), AbstractChainStore.bytes(block.getHash()));
+        Transaction[] transactions = block.getTransactions();
+        for (int i = 0; i < transactions.length; i++) {
+            putTXLocation(Hex.encodeHexString(transactions[i].getTxId()), new TXLocation(block.getHash(), i));
+        }
+    }
+
+    /**
+     * 断开区块，删除区块高度索引、交易索引以及撤销数据，区块体保留以便重新连接
+     * 撤销数据被删除后无法再从磁盘上的UTXO池重放到该区块，因此断开区块的批次总是直接写入存储
+     *
+     * @param block
+     */
+    public void disconnectBlock(Block block) {
+        writeThrough();
+        pending.put(AbstractChainStore.HEIGHT_INDEX_KEY_PREFIX + block.getHeight(), null);
+        for (Transaction transaction : block.getTransactions()) {
+            pending.put(AbstractChainStore.TX_INDEX_KEY_PREFIX + Hex.encodeHexString(transaction.getTxId()), null);
+        }
+        pending.put(AbstractChainStore.UNDO_KEY_PREFIX + block.getHash(), null);
+    }
+
+    /**
+     * 保存区块的撤销数据
+     *
+     * @param blockUndo
+     */
+    public void putBlockUndo(BlockUndo blockUndo) {
+        pending.put(AbstractChainStore.UNDO_KEY_PREFIX + blockUndo.getBlockHash(), SerializeUtil.serialize(blockUndo));
+    }
+
+    /**
+     * 裁剪区块，只保留区块头，区块高度索引以及交易索引保持不变，撤销数据随区块体一起丢弃
+     *
+     * @param block
+     */
+    public void pruneBlock(Block block) {
+        pending.put(AbstractChainStore.PRUNED_HEADER_KEY_PREFIX + block.getHash(),
+                SerializeUtil.serialize(AbstractChainStore.headerOf(block)));
+        pending.put(AbstractChainStore.BLOCK_KEY_PREFIX + block.getHash(), null);
+        pending.put(AbstractChainStore.UNDO_KEY_PREFIX + block.getHash(), null);
+    }
+
+    /**
+     * 保存已裁剪的最高区块高度
+     *
+     * @param height
+     */
+    public void putPrunedHeight(long height) {
+        pending.put(AbstractChainStore.PRUNED_HEIGHT_KEY, AbstractChainStore.bytes(String.valueOf(height)));
+    }
+
+    /**
+     * 保存旧版本区块的最高高度
+     *
+     * @param height
+     */
+    public void putLegacyHeaderHeight(long height) {
+        pending.put(AbstractChainStore.LEGACY_HEADER_HEIGHT_KEY, AbstractChainStore.bytes(String.valueOf(height)));
+    }
+
+    /**
+     * 保存交易索引
+     *
+     * @param txId     交易ID
+     * @param location 交易所在区块及位置
+     */
+    public void putTXLocation(String txId, TXLocation location) {
+        pending.put(AbstractChainStore.TX_INDEX_KEY_PREFIX + txId, SerializeUtil.serialize(location));
+    }
+
+    /**
+     * 保存最新一个区块的Hash值
+     *
+     * @param topBlockHash
+     */
+    public void putLastBlockHash(String topBlockHash) {
+        this.lastBlockHash = topBlockHash;
+        pending.put(AbstractChainStore.LAST_BLOCK_KEY, AbstractChainStore.bytes(topBlockHash));
+    }
+
+    /**
+     * 记录本批次提交后UTXO池对应的区块，未记录时使用最新区块哈希
+     *
+     * @param blockHash 区块哈希
+     */
+    public void putChainstateHash(String blockHash) {
+        this.chainstateHash = blockHash;
+    }
+
+    /**
+     * 本批次的UTXO变更连同缓存中尚未写入的变更一起直接写入存储
+     */
+    public void writeThrough() {
+        this.writeThrough = true;
+    }
+
+    /**
+     * 保存未花费的交易输出
+     *
+     * @param txId  交易ID
+     * @param index 交易输出索引
+     * @param utxo  交易输出
+     */
+    public void putUTXO(String txId, int index, TXOutput utxo) {
+        utxoChanges.put(OutPoint.key(txId, index), utxo);
+    }
+
+    /**
+     * 查询未花费的交易输出，优先读取本批次中尚未提交的数据
+     *
+     * @param txId  交易ID
+     * @param index 交易输出索引
+     * @return 不存在或已被花费时返回null
+     */
+    public TXOutput getUTXO(String txId, int index) {
+        String key = OutPoint.key(txId, index);
+        if (utxoChanges.containsKey(key)) {
+            return utxoChanges.get(key);
+        }
+        return store.getUTXO(txId, index);
+    }
+
+    /**
+     * 删除未花费的交易输出，即花费该交易输出
+     *
+     * @param txId  交易ID
+     * @param index 交易输出索引
+     */
+    public void deleteUTXO(String txId, int index) {
+        utxoChanges.put(OutPoint.key(txId, index), null);
+    }
+
+    /**
+     * 本批次中尚未提交的UTXO变更数量
+     *
+     * @return
+     */
+    public int getUTXOChangeCount() {
+        return utxoChanges.size();
+    }
+
+    /**
+     * 提交本批次的全部写入，整个区块只触发一次刷盘
+     */
+    public void commit() {
+        try {
+            String hash = chainstateHash != null ? chainstateHash : lastBlockHash;
+            store.commit(pending, utxoChanges, hash, writeThrough);
+            pending.clear();
+            utxoChanges.clear();
+        } catch (Exception e) {
+            System.out.println("Fail to commit block connect batch ! ");
+            throw new RuntimeException("Fail to commit block connect batch ! ", e);
+        }
+    }
+}
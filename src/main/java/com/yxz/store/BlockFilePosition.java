@@ -0,0 +1,31 @@
+package com.yxz.store;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 区块在区块文件中的位置
+ *
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class BlockFilePosition {
+
+    /**
+     * 区块文件编号，对应 blkNNNNN.dat
+     */
+    private int fileIndex;
+
+    /**
+     * 区块数据在文件中的起始位置
+     */
+    private long offset;
+
+    /**
+     * 区块数据长度
+     */
+    private int length;
+}
@@ -0,0 +1,287 @@
+package com.yxz.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 区块文件存储
+ * <p>
+ * 序列化后的区块顺序追加写入 blkNNNNN.dat 文件，单个文件超过上限后滚动到下一个文件，
+ * 区块所在的位置（文件编号、偏移量、长度）由LevelDB保存。
+ * 已经写满的文件不再变化，读取时整体映射到内存，顺序扫描区块链时接近磁盘顺序读的速度，区块数据也不会常驻JVM堆内存；
+ * 正在追加写入的文件仍在增长，按位置读取，不建立随文件增长而失效的映射。
+ *
+ */
+public class BlockFileStore implements Closeable {
+
+    /**
+     * 单个区块文件的默认大小上限
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 128L * 1024 * 1024;
+
+    /**
+     * 区块文件名格式
+     */
+    private static final String FILE_NAME_FORMAT = "blk%05d.dat";
+
+    /**
+     * 区块文件名匹配规则
+     */
+    private static final String FILE_NAME_PATTERN = "blk\\d{5,}\\.dat";
+
+    /**
+     * 区块文件目录
+     */
+    private final File dir;
+
+    /**
+     * 单个区块文件的大小上限
+     */
+    private final long maxFileSize;
+
+    /**
+     * 当前正在追加写入的文件编号
+     */
+    private int currentFileIndex;
+
+    /**
+     * 当前正在追加写入的文件
+     */
+    private FileChannel currentChannel;
+
+    /**
+     * 读取正在追加写入的文件使用的通道，与写入通道分开，读取线程被中断而关闭通道时不影响写入
+     */
+    private FileChannel activeReadChannel;
+
+    /**
+     * 已经映射到内存的区块文件，只包含写满的文件
+     */
+    private final Map<Integer, MappedByteBuffer> mappedFiles = new HashMap<>();
+
+    public BlockFileStore(File dir, long maxFileSize) {
+        this.dir = dir;
+        this.maxFileSize = maxFileSize;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new RuntimeException("Fail to create block file dir ! dir=" + dir);
+        }
+        // 从编号最大的文件继续追加，裁剪后编号较小的文件可能已被删除
+        int fileIndex = 0;
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.matches(FILE_NAME_PATTERN)) {
+                    fileIndex = Math.max(fileIndex, Integer.parseInt(name.substring(3, name.length() - 4)));
+                }
+            }
+        }
+        openForAppend(fileIndex);
+    }
+
+    /**
+     * 追加写入一个区块
+     *
+     * @param bytes 序列化后的区块
+     * @return 区块在文件中的位置
+     */
+    public synchronized BlockFilePosition append(byte[] bytes) {
+        try {
+            long offset = currentChannel.size();
+            if (offset > 0 && offset + bytes.length > maxFileSize) {
+                currentChannel.close();
+                openForAppend(currentFileIndex + 1);
+                offset = 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                currentChannel.write(buffer, offset + buffer.position());
+            }
+            return new BlockFilePosition(currentFileIndex, offset, bytes.length);
+        } catch (IOException e) {
+            System.out.println("Fail to append block to block file ! ");
+            throw new RuntimeException("Fail to append block to block file ! ", e);
+        }
+    }
+
+    /**
+     * 读取区块，写满的文件只有查找映射时加锁，复制数据时不加锁，多个线程可以同时读取
+     *
+     * @param position 区块在文件中的位置
+     * @return 序列化后的区块
+     */
+    public byte[] read(BlockFilePosition position) {
+        byte[] activeBytes = readActive(position);
+        if (activeBytes != null) {
+            return activeBytes;
+        }
+        MappedByteBuffer mapped = mappedFileOf(position);
+        byte[] bytes = new byte[position.getLength()];
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position((int) position.getOffset());
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 当前正在追加写入的文件编号
+     *
+     * @return
+     */
+    public synchronized int getCurrentFileIndex() {
+        return currentFileIndex;
+    }
+
+    /**
+     * 区块文件大小
+     *
+     * @param fileIndex 文件编号
+     * @return 文件不存在时返回0
+     */
+    public synchronized long sizeOf(int fileIndex) {
+        return fileOf(fileIndex).length();
+    }
+
+    /**
+     * 全部区块文件占用的磁盘大小
+     *
+     * @return
+     */
+    public synchronized long totalSize() {
+        long total = 0;
+        for (int fileIndex = 0; fileIndex <= currentFileIndex; fileIndex++) {
+            total += fileOf(fileIndex).length();
+        }
+        return total;
+    }
+
+    /**
+     * 删除区块文件，正在追加写入的文件不能删除
+     *
+     * @param fileIndex 文件编号
+     */
+    public synchronized void delete(int fileIndex) {
+        if (fileIndex >= currentFileIndex) {
+            throw new RuntimeException("Fail to delete block file ! file is still being appended ! fileIndex=" + fileIndex);
+        }
+        mappedFiles.remove(fileIndex);
+        File file = fileOf(fileIndex);
+        if (file.exists() && !file.delete()) {
+            throw new RuntimeException("Fail to delete block file ! file=" + file);
+        }
+    }
+
+    /**
+     * 将已追加的数据刷到磁盘，需要在引用这些数据的索引提交之前调用
+     */
+    public synchronized void flush() {
+        try {
+            currentChannel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to flush block file ! ", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            currentChannel.close();
+            closeActiveReadChannel();
+            mappedFiles.clear();
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to close block file ! ", e);
+        }
+    }
+
+    /**
+     * 打开区块文件用于追加写入
+     *
+     * @param fileIndex 文件编号
+     */
+    private void openForAppend(int fileIndex) {
+        try {
+            closeActiveReadChannel();
+            currentChannel = FileChannel.open(fileOf(fileIndex).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            currentFileIndex = fileIndex;
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to open block file ! fileIndex=" + fileIndex, e);
+        }
+    }
+
+    /**
+     * 按位置从正在追加写入的文件读取区块
+     *
+     * @param position 区块在文件中的位置
+     * @return 区块不在正在追加写入的文件中时返回null
+     */
+    private synchronized byte[] readActive(BlockFilePosition position) {
+        if (position.getFileIndex() != currentFileIndex) {
+            return null;
+        }
+        try {
+            if (activeReadChannel == null || !activeReadChannel.isOpen()) {
+                activeReadChannel = FileChannel.open(fileOf(currentFileIndex).toPath(), StandardOpenOption.READ);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(position.getLength());
+            while (buffer.hasRemaining()) {
+                if (activeReadChannel.read(buffer, position.getOffset() + buffer.position()) < 0) {
+                    throw new RuntimeException("Fail to read block from block file ! position out of range ! position=" + position);
+                }
+            }
+            return buffer.array();
+        } catch (IOException e) {
+            System.out.println("Fail to read block from block file ! position=" + position);
+            throw new RuntimeException("Fail to read block from block file ! ", e);
+        }
+    }
+
+    private void closeActiveReadChannel() throws IOException {
+        if (activeReadChannel != null) {
+            activeReadChannel.close();
+            activeReadChannel = null;
+        }
+    }
+
+    /**
+     * 查找包含该位置的文件映射，写满的文件不再变化，每个文件只映射一次
+     *
+     * @param position 区块在文件中的位置
+     * @return
+     */
+    private synchronized MappedByteBuffer mappedFileOf(BlockFilePosition position) {
+        MappedByteBuffer mapped = mappedFiles.get(position.getFileIndex());
+        if (mapped == null) {
+            mapped = map(position.getFileIndex());
+            mappedFiles.put(position.getFileIndex(), mapped);
+        }
+        if (mapped.capacity() < position.getOffset() + position.getLength()) {
+            throw new RuntimeException("Fail to read block from block file ! position out of range ! position=" + position);
+        }
+        return mapped;
+    }
+
+    /**
+     * 将整个区块文件映射到内存
+     *
+     * @param fileIndex 文件编号
+     * @return
+     */
+    private MappedByteBuffer map(int fileIndex) {
+        try (FileChannel channel = FileChannel.open(fileOf(fileIndex).toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to map block file ! fileIndex=" + fileIndex, e);
+        }
+    }
+
+    private File fileOf(int fileIndex) {
+        return new File(dir, String.format(FILE_NAME_FORMAT, fileIndex));
+    }
+}
@@ -0,0 +1,218 @@
+package com.yxz.store;
+
+import com.yxz.block.Block;
+import com.yxz.transaction.BlockUndo;
+import com.yxz.transaction.OutPoint;
+import com.yxz.transaction.TXLocation;
+import com.yxz.transaction.TXOutput;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.BiConsumer;
+
+/**
+ * 区块链存储接口，覆盖区块、最新区块哈希、索引以及UTXO的读写
+ * <p>
+ * 区块链与UTXO池通过该接口访问数据，可以替换为不同的存储实现：
+ * LevelDBUtil 为基于LevelDB以及区块文件的持久化实现，MemoryChainStore 为纯内存实现。
+ *
+ */
+public interface ChainStore {
+
+    /**
+     * 保存最新一个区块的Hash值
+     *
+     * @param topBlockHash
+     */
+    void putLastBlockHash(String topBlockHash);
+
+    /**
+     * 查询最新一个区块的Hash值
+     *
+     * @return 不存在时返回空字符串
+     */
+    String getLastBlockHash();
+
+    /**
+     * 保存区块
+     *
+     * @param block
+     */
+    void putBlock(Block block);
+
+    /**
+     * 查询区块
+     *
+     * @param blockHash
+     * @return 不存在时返回null，区块体已被裁剪时抛出异常
+     */
+    Block getBlock(String blockHash);
+
+    /**
+     * 查询区块头，区块被裁剪后仍然可以查询
+     *
+     * @param blockHash
+     * @return 不含交易的区块，不存在时返回null
+     */
+    Block getBlockHeader(String blockHash);
+
+    /**
+     * 查询区块的撤销数据
+     *
+     * @param blockHash
+     * @return 不存在时返回null，例如撤销数据引入之前连接的区块以及已裁剪的区块
+     */
+    BlockUndo getBlockUndo(String blockHash);
+
+    /**
+     * 区块体是否已被裁剪
+     *
+     * @param blockHash
+     * @return
+     */
+    boolean isBlockPruned(String blockHash);
+
+    /**
+     * 查询已裁剪的最高区块高度，该高度及以下的区块体均不可用
+     *
+     * @return 没有裁剪过时返回-1
+     */
+    long getPrunedHeight();
+
+    /**
+     * 查询旧版本区块的最高高度，该高度及以下的区块在区块头引入之前挖出，没有记录merkle根，工作量证明无法重新计算
+     *
+     * @return 没有旧版本区块时返回-1
+     */
+    long getLegacyHeaderHeight();
+
+    /**
+     * 裁剪模式下丢弃已连接的旧区块体，保留区块头以及各项索引
+     * 未开启裁剪模式时不做任何事情
+     *
+     * @param tipHeight 最新区块高度
+     */
+    void prune(long tipHeight);
+
+    /**
+     * 依据高度查询区块哈希
+     *
+     * @param height 区块高度
+     * @return 不存在时返回空字符串
+     */
+    String getBlockHash(long height);
+
+    /**
+     * 查询交易所在的区块及位置
+     *
+     * @param txId 交易ID
+     * @return 不存在索引时返回null
+     */
+    TXLocation getTXLocation(String txId);
+
+    /**
+     * 清空交易索引
+     */
+    void cleanTXIndex();
+
+    /**
+     * 清空chainstate bucket，同时清空地址索引
+     */
+    void cleanChainStateBucket();
+
+    /**
+     * 查询chainstate bucket中的全部数据，会把全部UTXO读入内存
+     *
+     * @return 交易输出位置（'txid:index'） -> 序列化后的交易输出
+     */
+    Map<String, byte[]> getChainstateBucket();
+
+    /**
+     * 逐条遍历chainstate bucket，内存占用与UTXO数量无关
+     *
+     * @param consumer 依次接收交易输出位置（'txid:index'）以及序列化后的交易输出
+     */
+    void forEachChainstateEntry(BiConsumer<String, byte[]> consumer);
+
+    /**
+     * 通过地址索引查询属于该地址的未花费交易输出
+     *
+     * @param publicKeyHash 公钥Hash
+     * @return 交易输出位置集合
+     */
+    Set<OutPoint> getUTXOOutPoints(byte[] publicKeyHash);
+
+    /**
+     * 查询地址余额，余额随UTXO变更在同一批次中维护，查询只需读取一条记录
+     *
+     * @param publicKeyHash 公钥Hash
+     * @return
+     */
+    long getBalance(byte[] publicKeyHash);
+
+    /**
+     * 保存未花费的交易输出
+     *
+     * @param txId  交易ID
+     * @param index 交易输出索引
+     * @param utxo  交易输出
+     */
+    void putUTXO(String txId, int index, TXOutput utxo);
+
+    /**
+     * 查询未花费的交易输出
+     *
+     * @param txId  交易ID
+     * @param index 交易输出索引
+     * @return 不存在或已被花费时返回null
+     */
+    TXOutput getUTXO(String txId, int index);
+
+    /**
+     * 查询一笔交易中全部未花费的交易输出
+     *
+     * @param txId 交易ID
+     * @return 交易输出索引 -> 交易输出，按索引排序
+     */
+    SortedMap<Integer, TXOutput> getUTXOs(String txId);
+
+    /**
+     * 删除未花费的交易输出
+     *
+     * @param txId  交易ID
+     * @param index 交易输出索引
+     */
+    void deleteUTXO(String txId, int index);
+
+    /**
+     * 查询磁盘上的UTXO池对应的区块哈希，开启UTXO缓存时可能落后于最新区块
+     *
+     * @return 空字符串表示UTXO池为空，没有记录时返回最新区块哈希
+     */
+    String getChainstateHash();
+
+    /**
+     * 把UTXO缓存中尚未写入的变更批量写入存储
+     */
+    void flushUTXOCache();
+
+    /**
+     * 查询UTXO池的承诺值，与UTXO的写入顺序无关，UTXO池相同的两个节点得到相同的结果
+     *
+     * @return 32字节的哈希值
+     */
+    byte[] getUTXOCommitment();
+
+    /**
+     * 开始一次区块连接，区块、UTXO变更以及最新区块哈希会在提交时一次性写入
+     *
+     * @return
+     */
+    BlockConnectBatch beginBlockConnect();
+
+    /**
+     * 关闭存储
+     */
+    void closeDB();
+}
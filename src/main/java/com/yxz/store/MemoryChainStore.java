@@ -0,0 +1,146 @@
+package com.yxz.store;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+
+/**
+ * 纯内存的区块链存储，不涉及任何磁盘读写
+ * <p>
+ * 用于测试以及单独衡量共识、UTXO等模块的性能，同一个JVM中可以创建多个互不影响的实例。
+ * UTXO数据可以改为保存在堆外的 OffHeapUTXOTable 中，UTXO数量很大时不占用堆内存。
+ * 无参构造方法由系统属性 blockchain.memoryStore.offHeapUTXO 决定是否开启，例如 -Dblockchain.memoryStore.offHeapUTXO=true
+ *
+ */
+public class MemoryChainStore extends AbstractChainStore {
+
+    /**
+     * 是否把UTXO保存在堆外的系统属性
+     */
+    public static final String OFF_HEAP_UTXO_PROPERTY = "blockchain.memoryStore.offHeapUTXO";
+
+    /**
+     * 全部数据，按键排序以支持前缀遍历
+     */
+    private final ConcurrentNavigableMap<String, byte[]> data = new ConcurrentSkipListMap<>();
+
+    /**
+     * 堆外的UTXO表，为null时UTXO与其他数据一样保存在 data 中
+     */
+    private final OffHeapUTXOTable utxoTable;
+
+    public MemoryChainStore() {
+        this(Boolean.getBoolean(OFF_HEAP_UTXO_PROPERTY));
+    }
+
+    /**
+     * @param offHeapUTXO 是否把UTXO保存在堆外
+     */
+    public MemoryChainStore(boolean offHeapUTXO) {
+        this.utxoTable = offHeapUTXO ? new OffHeapUTXOTable() : null;
+    }
+
+    @Override
+    protected byte[] get(String key) {
+        if (isOffHeapUTXOKey(key)) {
+            return utxoTable.get(key.substring(UTXO_KEY_PREFIX.length()));
+        }
+        return data.get(key);
+    }
+
+    @Override
+    protected void forEachByPrefix(String keyPrefix, BiConsumer<String, byte[]> consumer) {
+        if (isOffHeapUTXOKey(keyPrefix)) {
+            // 与其他存储的遍历顺序保持一致
+            utxoTable.forEachSorted(keyPrefix.substring(UTXO_KEY_PREFIX.length()), consumer);
+            return;
+        }
+        for (Map.Entry<String, byte[]> entry : subMapOf(keyPrefix).entrySet()) {
+            consumer.accept(entry.getKey().substring(keyPrefix.length()), entry.getValue());
+        }
+    }
+
+    @Override
+    protected void deleteByPrefix(String keyPrefix) {
+        if (isOffHeapUTXOKey(keyPrefix)) {
+            utxoTable.removeByPrefix(keyPrefix.substring(UTXO_KEY_PREFIX.length()));
+            return;
+        }
+        subMapOf(keyPrefix).clear();
+    }
+
+    /**
+     * 批次之间互斥写入，内存中无需刷盘
+     *
+     * @param pending 待写入的数据，值为null表示删除
+     * @param sync    是否同步刷盘
+     */
+    @Override
+    protected synchronized void write(Map<String, byte[]> pending, boolean sync) {
+        for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+            if (isOffHeapUTXOKey(entry.getKey())) {
+                String outPoint = entry.getKey().substring(UTXO_KEY_PREFIX.length());
+                if (entry.getValue() == null) {
+                    utxoTable.remove(outPoint);
+                } else {
+                    utxoTable.put(outPoint, entry.getValue());
+                }
+            } else if (entry.getValue() == null) {
+                data.remove(entry.getKey());
+            } else {
+                data.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    protected byte[] storeBlockBytes(byte[] blockBytes) {
+        return blockBytes;
+    }
+
+    @Override
+    protected byte[] loadBlockBytes(byte[] storedValue) {
+        return storedValue;
+    }
+
+    /**
+     * 内存存储不占用磁盘，不需要裁剪
+     *
+     * @param tipHeight 最新区块高度
+     */
+    @Override
+    public void prune(long tipHeight) {
+    }
+
+    @Override
+    public void closeDB() {
+        data.clear();
+        if (utxoTable != null) {
+            utxoTable.clear();
+        }
+    }
+
+    /**
+     * 堆外的UTXO表，没有开启时返回null
+     *
+     * @return
+     */
+    public OffHeapUTXOTable getUTXOTable() {
+        return utxoTable;
+    }
+
+    private boolean isOffHeapUTXOKey(String key) {
+        return utxoTable != null && key.startsWith(UTXO_KEY_PREFIX);
+    }
+
+    /**
+     * 指定前缀的全部数据视图
+     *
+     * @param keyPrefix 键前缀
+     * @return
+     */
+    private ConcurrentNavigableMap<String, byte[]> subMapOf(String keyPrefix) {
+        return data.subMap(keyPrefix, true, keyPrefix + Character.MAX_VALUE, false);
+    }
+}
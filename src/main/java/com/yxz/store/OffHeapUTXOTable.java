@@ -0,0 +1,597 @@
+package com.yxz.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * 堆外的UTXO表，以交易输出位置为键，序列化后的交易输出为值
+ * <p>
+ * 使用线性探测的开放寻址哈希表，槽位定长并保存在 ByteBuffer.allocateDirect 分配的若干段内存中，
+ * 键直接保存32字节的交易ID和4字节的交易输出索引，不为每条UTXO创建任何Java对象，也不给GC增加负担。
+ * 槽位布局：状态(1) | 交易ID(32) | 交易输出索引(4) | 值长度(1) | 值(maxValueLength)
+ * <p>
+ * 哈希值只由交易ID计算，同一交易的全部交易输出位于同一段探测序列中，
+ * 因此按交易ID查询全部交易输出时只需从该交易ID的起始槽位探测到空槽位为止。
+ * 删除时把后续槽位前移，不使用删除标记。
+ *
+ */
+public class OffHeapUTXOTable {
+
+    /**
+     * 默认的初始槽位数量
+     */
+    public static final int DEFAULT_INITIAL_CAPACITY = 1024;
+
+    /**
+     * 默认的值最大长度，足够保存序列化后的交易输出（公钥Hash为20字节）
+     */
+    public static final int DEFAULT_MAX_VALUE_LENGTH = 31;
+
+    /**
+     * 每段内存最多包含的槽位数量，避免单个 ByteBuffer 超过2GB
+     */
+    private static final int SEGMENT_SLOTS = 1 << 20;
+
+    private static final int TX_ID_LENGTH = 32;
+
+    private static final int STATE_OFFSET = 0;
+
+    private static final int TX_ID_OFFSET = 1;
+
+    private static final int INDEX_OFFSET = TX_ID_OFFSET + TX_ID_LENGTH;
+
+    private static final int VALUE_LENGTH_OFFSET = INDEX_OFFSET + 4;
+
+    private static final int VALUE_OFFSET = VALUE_LENGTH_OFFSET + 1;
+
+    private static final byte EMPTY = 0;
+
+    private static final byte USED = 1;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final int initialCapacity;
+
+    private final int maxValueLength;
+
+    private final int slotSize;
+
+    private ByteBuffer[] segments;
+
+    /**
+     * 槽位数量，2的幂
+     */
+    private int capacity;
+
+    /**
+     * 每段内存的槽位数量以2为底的对数
+     */
+    private int segmentShift;
+
+    private int size;
+
+    /**
+     * 解析键时复用的交易ID缓冲区
+     */
+    private final byte[] txIdBuffer = new byte[TX_ID_LENGTH];
+
+    public OffHeapUTXOTable() {
+        this(DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_VALUE_LENGTH);
+    }
+
+    /**
+     * @param initialCapacity 初始槽位数量，会向上取整为2的幂
+     * @param maxValueLength  值的最大长度，不超过255
+     */
+    public OffHeapUTXOTable(int initialCapacity, int maxValueLength) {
+        if (maxValueLength <= 0 || maxValueLength > 255) {
+            throw new RuntimeException("Fail to create off-heap UTXO table ! invalid maxValueLength=" + maxValueLength);
+        }
+        this.initialCapacity = Math.max(16, Integer.highestOneBit(Math.max(1, initialCapacity - 1)) << 1);
+        this.maxValueLength = maxValueLength;
+        this.slotSize = VALUE_OFFSET + maxValueLength;
+        allocate(this.initialCapacity);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 堆外内存占用，单位字节
+     *
+     * @return
+     */
+    public synchronized long getAllocatedBytes() {
+        return (long) capacity * slotSize;
+    }
+
+    /**
+     * 查询交易输出
+     *
+     * @param key 交易输出位置，'txid:index'
+     * @return 不存在时返回null
+     */
+    public synchronized byte[] get(String key) {
+        int index = parseKey(key);
+        int slot = find(txIdBuffer, index);
+        return slot < 0 ? null : readValue(slot);
+    }
+
+    /**
+     * 保存交易输出
+     *
+     * @param key   交易输出位置，'txid:index'
+     * @param value 序列化后的交易输出
+     */
+    public synchronized void put(String key, byte[] value) {
+        if (value.length > maxValueLength) {
+            System.out.println("Fail to put UTXO into off-heap table ! value is too large ! length=" + value.length);
+            throw new RuntimeException("Fail to put UTXO into off-heap table ! value is too large ! length=" + value.length);
+        }
+        int index = parseKey(key);
+        int slot = find(txIdBuffer, index);
+        if (slot < 0) {
+            if ((size + 1) > capacity - (capacity >>> 2)) {
+                resize(capacity << 1);
+                slot = find(txIdBuffer, index);
+            }
+            slot = -slot - 1;
+            writeKey(slot, txIdBuffer, index);
+            size++;
+        }
+        writeValue(slot, value);
+    }
+
+    /**
+     * 删除交易输出
+     *
+     * @param key 交易输出位置，'txid:index'
+     */
+    public synchronized void remove(String key) {
+        int index = parseKey(key);
+        int slot = find(txIdBuffer, index);
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+    }
+
+    /**
+     * 删除交易输出位置以指定前缀开头的全部交易输出
+     *
+     * @param keyPrefix 交易输出位置的前缀，为空时清空整个表
+     */
+    public synchronized void removeByPrefix(String keyPrefix) {
+        if (keyPrefix.isEmpty()) {
+            clear();
+            return;
+        }
+        int slot = 0;
+        while (slot < capacity) {
+            // 删除后后续槽位会前移到当前槽位，需要重新检查当前槽位
+            if (state(slot) == USED && keyStartsWith(slot, keyPrefix)) {
+                removeSlot(slot);
+            } else {
+                slot++;
+            }
+        }
+    }
+
+    /**
+     * 遍历全部交易输出，顺序不固定
+     *
+     * @param consumer 依次接收交易输出位置（'txid:index'）以及序列化后的交易输出
+     */
+    public synchronized void forEach(BiConsumer<String, byte[]> consumer) {
+        for (int slot = 0; slot < capacity; slot++) {
+            if (state(slot) == USED) {
+                consumer.accept(keyOf(slot), readValue(slot));
+            }
+        }
+    }
+
+    /**
+     * 按交易输出位置的字典序遍历前缀匹配的交易输出，与按键排序的存储遍历顺序一致
+     * <p>
+     * 堆内只保存匹配槽位的 int[]，排序时直接比较堆外的键，不为每条UTXO创建字符串。
+     * 前缀为'txid:'时只探测该交易ID所在的槽位序列。遍历期间不能修改本表
+     *
+     * @param keyPrefix 交易输出位置的前缀
+     * @param consumer  依次接收去掉前缀后的交易输出位置以及序列化后的交易输出
+     */
+    public synchronized void forEachSorted(String keyPrefix, BiConsumer<String, byte[]> consumer) {
+        int[] slots = isTxIdPrefix(keyPrefix) ? outputSlotsOf(keyPrefix) : slotsStartWith(keyPrefix);
+        sortSlots(slots);
+        for (int slot : slots) {
+            consumer.accept(keyOf(slot).substring(keyPrefix.length()), readValue(slot));
+        }
+    }
+
+    /**
+     * 清空全部交易输出，并释放扩容后的内存
+     */
+    public synchronized void clear() {
+        allocate(initialCapacity);
+    }
+
+    /**
+     * 查找键所在的槽位
+     *
+     * @return 找到时返回槽位，否则返回 -(可以插入的空槽位) - 1
+     */
+    private int find(byte[] txId, int index) {
+        int mask = capacity - 1;
+        int slot = hash(txId) & mask;
+        while (state(slot) == USED) {
+            if (segmentOf(slot).getInt(offsetOf(slot) + INDEX_OFFSET) == index && txIdEquals(slot, txId)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -slot - 1;
+    }
+
+    private void allocate(int newCapacity) {
+        capacity = newCapacity;
+        int slotsPerSegment = Math.min(newCapacity, SEGMENT_SLOTS);
+        segmentShift = Integer.numberOfTrailingZeros(slotsPerSegment);
+        segments = new ByteBuffer[newCapacity / slotsPerSegment];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = ByteBuffer.allocateDirect(slotsPerSegment * slotSize);
+        }
+        size = 0;
+    }
+
+    /**
+     * 扩容后重新放入全部槽位
+     *
+     * @param newCapacity 新的槽位数量
+     */
+    private void resize(int newCapacity) {
+        if (newCapacity <= 0) {
+            System.out.println("Fail to resize off-heap UTXO table ! too many entries ! size=" + size);
+            throw new RuntimeException("Fail to resize off-heap UTXO table ! too many entries ! size=" + size);
+        }
+        ByteBuffer[] oldSegments = segments;
+        int oldCapacity = capacity;
+        int oldSegmentShift = segmentShift;
+        int oldSize = size;
+        allocate(newCapacity);
+        byte[] slotBytes = new byte[slotSize];
+        byte[] txId = new byte[TX_ID_LENGTH];
+        int mask = newCapacity - 1;
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            ByteBuffer oldSegment = oldSegments[oldSlot >>> oldSegmentShift];
+            int oldOffset = (oldSlot & ((1 << oldSegmentShift) - 1)) * slotSize;
+            if (oldSegment.get(oldOffset + STATE_OFFSET) != USED) {
+                continue;
+            }
+            for (int i = 0; i < slotSize; i++) {
+                slotBytes[i] = oldSegment.get(oldOffset + i);
+            }
+            System.arraycopy(slotBytes, TX_ID_OFFSET, txId, 0, TX_ID_LENGTH);
+            int slot = hash(txId) & mask;
+            while (state(slot) == USED) {
+                slot = (slot + 1) & mask;
+            }
+            writeSlot(slot, slotBytes);
+        }
+        size = oldSize;
+    }
+
+    /**
+     * 删除槽位，并把后续槽位前移，填补删除留下的空位
+     *
+     * @param slot 已使用的槽位
+     */
+    private void removeSlot(int slot) {
+        int mask = capacity - 1;
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (state(next) == EMPTY) {
+                break;
+            }
+            int home = home(next);
+            boolean between = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (between) {
+                continue;
+            }
+            copySlot(next, hole);
+            hole = next;
+        }
+        segmentOf(hole).put(offsetOf(hole) + STATE_OFFSET, EMPTY);
+        size--;
+    }
+
+    /**
+     * 前缀是否恰好为'txid:'
+     */
+    private static boolean isTxIdPrefix(String keyPrefix) {
+        return keyPrefix.length() == TX_ID_LENGTH * 2 + 1 && keyPrefix.charAt(TX_ID_LENGTH * 2) == ':';
+    }
+
+    /**
+     * 一笔交易的全部交易输出所在的槽位
+     *
+     * @param keyPrefix 'txid:'
+     * @return
+     */
+    private int[] outputSlotsOf(String keyPrefix) {
+        parseTxId(keyPrefix, 0, TX_ID_LENGTH * 2, txIdBuffer);
+        int[] slots = new int[4];
+        int count = 0;
+        int mask = capacity - 1;
+        for (int slot = hash(txIdBuffer) & mask; state(slot) == USED; slot = (slot + 1) & mask) {
+            if (txIdEquals(slot, txIdBuffer)) {
+                if (count == slots.length) {
+                    slots = Arrays.copyOf(slots, count << 1);
+                }
+                slots[count++] = slot;
+            }
+        }
+        return Arrays.copyOf(slots, count);
+    }
+
+    /**
+     * 交易输出位置以指定前缀开头的全部槽位
+     *
+     * @param keyPrefix 交易输出位置的前缀
+     * @return
+     */
+    private int[] slotsStartWith(String keyPrefix) {
+        int[] slots = new int[keyPrefix.isEmpty() ? size : 16];
+        int count = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (state(slot) == USED && keyStartsWith(slot, keyPrefix)) {
+                if (count == slots.length) {
+                    slots = Arrays.copyOf(slots, count << 1);
+                }
+                slots[count++] = slot;
+            }
+        }
+        return count == slots.length ? slots : Arrays.copyOf(slots, count);
+    }
+
+    /**
+     * 槽位中的交易输出位置是否以指定前缀开头，只在前缀包含交易输出索引时创建字符串
+     */
+    private boolean keyStartsWith(int slot, String keyPrefix) {
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        int hexLength = Math.min(keyPrefix.length(), TX_ID_LENGTH * 2);
+        for (int i = 0; i < hexLength; i++) {
+            int b = segment.get(offset + TX_ID_OFFSET + (i >>> 1)) & 0xFF;
+            if (HEX_DIGITS[(i & 1) == 0 ? b >>> 4 : b & 0x0F] != keyPrefix.charAt(i)) {
+                return false;
+            }
+        }
+        if (keyPrefix.length() <= TX_ID_LENGTH * 2) {
+            return true;
+        }
+        return keyPrefix.charAt(TX_ID_LENGTH * 2) == ':' && String.valueOf(segment.getInt(offset + INDEX_OFFSET))
+                .startsWith(keyPrefix.substring(TX_ID_LENGTH * 2 + 1));
+    }
+
+    /**
+     * 按交易输出位置的字典序对槽位做归并排序
+     *
+     * @param slots
+     */
+    private void sortSlots(int[] slots) {
+        int[] from = slots;
+        int[] to = new int[slots.length];
+        for (int width = 1; width < slots.length; width <<= 1) {
+            for (int low = 0; low < slots.length; low += width << 1) {
+                int middle = Math.min(low + width, slots.length);
+                int high = Math.min(low + (width << 1), slots.length);
+                int i = low, j = middle, k = low;
+                while (i < middle && j < high) {
+                    to[k++] = compareSlots(from[i], from[j]) <= 0 ? from[i++] : from[j++];
+                }
+                while (i < middle) {
+                    to[k++] = from[i++];
+                }
+                while (j < high) {
+                    to[k++] = from[j++];
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != slots) {
+            System.arraycopy(from, 0, slots, 0, slots.length);
+        }
+    }
+
+    /**
+     * 比较两个槽位的交易输出位置'txid:index'的字典序
+     * <p>
+     * 小写十六进制的字典序与交易ID字节的无符号序一致，按大端序的long比较即可；
+     * 交易输出索引按十进制字符串比较，例如"10"排在"2"之前
+     */
+    private int compareSlots(int left, int right) {
+        ByteBuffer leftSegment = segmentOf(left);
+        int leftOffset = offsetOf(left);
+        ByteBuffer rightSegment = segmentOf(right);
+        int rightOffset = offsetOf(right);
+        for (int i = 0; i < TX_ID_LENGTH; i += 8) {
+            int compare = Long.compareUnsigned(leftSegment.getLong(leftOffset + TX_ID_OFFSET + i),
+                    rightSegment.getLong(rightOffset + TX_ID_OFFSET + i));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return compareDecimalStrings(leftSegment.getInt(leftOffset + INDEX_OFFSET),
+                rightSegment.getInt(rightOffset + INDEX_OFFSET));
+    }
+
+    /**
+     * 不创建字符串，比较两个非负整数十进制表示的字典序
+     * <p>
+     * 把位数较少的一方补0到相同位数后比较数值，数值相同时位数较少的一方是前缀，排在前面
+     */
+    private static int compareDecimalStrings(int left, int right) {
+        int leftDigits = digits(left);
+        int rightDigits = digits(right);
+        long leftValue = left;
+        long rightValue = right;
+        for (int i = leftDigits; i < rightDigits; i++) {
+            leftValue *= 10;
+        }
+        for (int i = rightDigits; i < leftDigits; i++) {
+            rightValue *= 10;
+        }
+        return leftValue != rightValue ? Long.compare(leftValue, rightValue) : Integer.compare(leftDigits, rightDigits);
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private ByteBuffer segmentOf(int slot) {
+        return segments[slot >>> segmentShift];
+    }
+
+    private int offsetOf(int slot) {
+        return (slot & ((1 << segmentShift) - 1)) * slotSize;
+    }
+
+    private byte state(int slot) {
+        return segmentOf(slot).get(offsetOf(slot) + STATE_OFFSET);
+    }
+
+    /**
+     * 槽位中的键本应所在的起始槽位
+     */
+    private int home(int slot) {
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot) + TX_ID_OFFSET;
+        return mix(segment.getLong(offset)) & (capacity - 1);
+    }
+
+    /**
+     * 交易ID本身是SHA-256，取前8个字节再混合即可均匀分布
+     */
+    private static int hash(byte[] txId) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (txId[i] & 0xFF);
+        }
+        return mix(value);
+    }
+
+    private static int mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    private boolean txIdEquals(int slot, byte[] txId) {
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot) + TX_ID_OFFSET;
+        for (int i = 0; i < TX_ID_LENGTH; i++) {
+            if (segment.get(offset + i) != txId[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeKey(int slot, byte[] txId, int index) {
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        segment.put(offset + STATE_OFFSET, USED);
+        for (int i = 0; i < TX_ID_LENGTH; i++) {
+            segment.put(offset + TX_ID_OFFSET + i, txId[i]);
+        }
+        segment.putInt(offset + INDEX_OFFSET, index);
+    }
+
+    private void writeValue(int slot, byte[] value) {
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        segment.put(offset + VALUE_LENGTH_OFFSET, (byte) value.length);
+        for (int i = 0; i < value.length; i++) {
+            segment.put(offset + VALUE_OFFSET + i, value[i]);
+        }
+    }
+
+    private byte[] readValue(int slot) {
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        byte[] value = new byte[segment.get(offset + VALUE_LENGTH_OFFSET) & 0xFF];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = segment.get(offset + VALUE_OFFSET + i);
+        }
+        return value;
+    }
+
+    private void writeSlot(int slot, byte[] slotBytes) {
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        for (int i = 0; i < slotSize; i++) {
+            segment.put(offset + i, slotBytes[i]);
+        }
+    }
+
+    private void copySlot(int from, int to) {
+        ByteBuffer fromSegment = segmentOf(from);
+        int fromOffset = offsetOf(from);
+        ByteBuffer toSegment = segmentOf(to);
+        int toOffset = offsetOf(to);
+        for (int i = 0; i < slotSize; i++) {
+            toSegment.put(toOffset + i, fromSegment.get(fromOffset + i));
+        }
+    }
+
+    private String keyOf(int slot) {
+        ByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        char[] hex = new char[TX_ID_LENGTH * 2];
+        for (int i = 0; i < TX_ID_LENGTH; i++) {
+            int b = segment.get(offset + TX_ID_OFFSET + i) & 0xFF;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(hex) + ':' + segment.getInt(offset + INDEX_OFFSET);
+    }
+
+    /**
+     * 解析交易输出位置，交易ID写入 txIdBuffer
+     *
+     * @param key 'txid:index'
+     * @return 交易输出索引
+     */
+    private int parseKey(String key) {
+        int separator = key.lastIndexOf(':');
+        if (separator < 0) {
+            throw new RuntimeException("Fail to parse out point ! key=" + key);
+        }
+        parseTxId(key, 0, separator, txIdBuffer);
+        return Integer.parseInt(key.substring(separator + 1));
+    }
+
+    private static void parseTxId(String text, int from, int to, byte[] txId) {
+        if (to - from != TX_ID_LENGTH * 2) {
+            throw new RuntimeException("Fail to parse txId ! txId must be 32 bytes ! text=" + text);
+        }
+        for (int i = 0; i < TX_ID_LENGTH; i++) {
+            int high = Character.digit(text.charAt(from + i * 2), 16);
+            int low = Character.digit(text.charAt(from + i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new RuntimeException("Fail to parse txId ! invalid hex ! text=" + text);
+            }
+            txId[i] = (byte) ((high << 4) | low);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.yxz.store;
+
+import com.yxz.transaction.MuHash;
+import com.yxz.transaction.TXOutput;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 回写式UTXO缓存，位于chainstate存储之上
+ * <p>
+ * 缓存以交易输出位置（'txid:index'）为键，区块连接时对UTXO的读写都在缓存中完成，只有超过内存上限或者关闭存储时才批量写入存储：
+ * dirty 表示条目与存储中的数据不一致，需要在刷新时写入；
+ * fresh 表示存储中不存在该交易输出，这样的条目被删除时直接从缓存中丢弃，
+ * 因此在两次刷新之间创建又被花费的交易输出永远不会写入磁盘。
+ * 同时按地址累计尚未写入的余额变化，查询余额时与存储中的余额记录相加；UTXO承诺值的变化也同样累计。
+ *
+ */
+public class UTXOCache {
+
+    /**
+     * 每个条目的固定开销估算值
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * 交易输出的固定开销估算值
+     */
+    private static final int OUTPUT_OVERHEAD = 40;
+
+    /**
+     * 缓存条目
+     */
+    private static class Entry {
+
+        /**
+         * 交易输出，null表示不存在或已被花费
+         */
+        private TXOutput utxo;
+
+        private boolean dirty;
+
+        private boolean fresh;
+
+        private Entry(TXOutput utxo, boolean dirty, boolean fresh) {
+            this.utxo = utxo;
+            this.dirty = dirty;
+            this.fresh = fresh;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * 地址 -> 缓存中的变更对余额的影响，不包含变化为0的地址
+     */
+    private final Map<String, Long> balanceDeltas = new HashMap<>();
+
+    /**
+     * 缓存中的变更对UTXO承诺值的影响
+     */
+    private MuHash commitmentDelta = new MuHash();
+
+    /**
+     * 缓存未命中时从存储中读取交易输出
+     */
+    private final Function<String, TXOutput> loader;
+
+    /**
+     * 缓存占用内存的上限，0表示不使用缓存
+     */
+    private long maxBytes;
+
+    /**
+     * 缓存占用内存的估算值
+     */
+    private long currentBytes;
+
+    /**
+     * 缓存中的UTXO对应的区块哈希
+     */
+    private String bestBlockHash;
+
+    public UTXOCache(long maxBytes, Function<String, TXOutput> loader) {
+        this.maxBytes = maxBytes;
+        this.loader = loader;
+    }
+
+    public synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 是否超过内存上限，超过时需要刷新
+     *
+     * @return
+     */
+    public synchronized boolean isFull() {
+        return currentBytes > maxBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized String getBestBlockHash() {
+        return bestBlockHash;
+    }
+
+    public synchronized void setBestBlockHash(String bestBlockHash) {
+        this.bestBlockHash = bestBlockHash;
+    }
+
+    /**
+     * 查询地址尚未写入存储的余额变化
+     *
+     * @param address 公钥Hash的十六进制表示
+     * @return
+     */
+    public synchronized long getBalanceDelta(String address) {
+        return balanceDeltas.getOrDefault(address, 0L);
+    }
+
+    /**
+     * 查询尚未写入存储的UTXO承诺值变化
+     *
+     * @return 副本
+     */
+    public synchronized MuHash getCommitmentDelta() {
+        return commitmentDelta.copy();
+    }
+
+    /**
+     * 查询交易输出，未命中时从存储中读取并缓存
+     *
+     * @param key 交易输出位置
+     * @return 不存在时返回null
+     */
+    public synchronized TXOutput get(String key) {
+        TXOutput utxo = entryOf(key).utxo;
+        if (currentBytes > maxBytes) {
+            evictClean();
+        }
+        return utxo;
+    }
+
+    /**
+     * 批量应用一个区块对UTXO的变更
+     *
+     * @param changes 交易输出位置 -> 变更后的交易输出，null表示删除
+     */
+    public synchronized void apply(Map<String, TXOutput> changes) {
+        for (Map.Entry<String, TXOutput> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                delete(change.getKey());
+            } else {
+                put(change.getKey(), change.getValue());
+            }
+        }
+    }
+
+    private void put(String key, TXOutput utxo) {
+        Entry entry = entryOf(key);
+        currentBytes += sizeOf(utxo) - sizeOf(entry.utxo);
+        addBalanceDelta(entry.utxo, -1);
+        addBalanceDelta(utxo, 1);
+        if (entry.utxo != null) {
+            commitmentDelta.remove(AbstractChainStore.commitmentElementOf(key, entry.utxo));
+        }
+        commitmentDelta.insert(AbstractChainStore.commitmentElementOf(key, utxo));
+        entry.utxo = utxo;
+        entry.dirty = true;
+    }
+
+    private void delete(String key) {
+        Entry entry = entryOf(key);
+        addBalanceDelta(entry.utxo, -1);
+        if (entry.utxo != null) {
+            commitmentDelta.remove(AbstractChainStore.commitmentElementOf(key, entry.utxo));
+        }
+        if (entry.fresh) {
+            // 存储中不存在，直接丢弃
+            entries.remove(key);
+            currentBytes -= ENTRY_OVERHEAD + key.length() + sizeOf(entry.utxo);
+            return;
+        }
+        currentBytes -= sizeOf(entry.utxo);
+        entry.utxo = null;
+        entry.dirty = true;
+    }
+
+    private void addBalanceDelta(TXOutput utxo, int sign) {
+        if (utxo == null) {
+            return;
+        }
+        String address = AbstractChainStore.addressOf(utxo);
+        long delta = balanceDeltas.getOrDefault(address, 0L) + sign * (long) utxo.getValue();
+        if (delta == 0) {
+            balanceDeltas.remove(address);
+        } else {
+            balanceDeltas.put(address, delta);
+        }
+    }
+
+    /**
+     * 查询全部脏条目，这些变更尚未写入存储，地址索引中也还没有体现
+     *
+     * @return 交易输出位置 -> 交易输出，null表示已被花费
+     */
+    public synchronized Map<String, TXOutput> dirtyEntries() {
+        Map<String, TXOutput> dirty = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().dirty) {
+                dirty.put(entry.getKey(), entry.getValue().utxo);
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * 丢弃与存储一致的条目，只读查询不会让缓存无限增长
+     */
+    private void evictClean() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (!entry.getValue().dirty) {
+                iterator.remove();
+                currentBytes -= ENTRY_OVERHEAD + entry.getKey().length() + sizeOf(entry.getValue().utxo);
+            }
+        }
+    }
+
+    /**
+     * 清空缓存，刷新写入存储之后或者chainstate被清空时调用
+     */
+    public synchronized void clear() {
+        entries.clear();
+        balanceDeltas.clear();
+        commitmentDelta = new MuHash();
+        currentBytes = 0;
+        bestBlockHash = null;
+    }
+
+    private Entry entryOf(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            TXOutput utxo = loader.apply(key);
+            entry = new Entry(utxo, false, utxo == null);
+            entries.put(key, entry);
+            currentBytes += ENTRY_OVERHEAD + key.length() + sizeOf(utxo);
+        }
+        return entry;
+    }
+
+    private static long sizeOf(TXOutput utxo) {
+        if (utxo == null) {
+            return 0;
+        }
+        return OUTPUT_OVERHEAD + (utxo.getPublicKeyHash() == null ? 0 : utxo.getPublicKeyHash().length);
+    }
+}
@@ -0,0 +1,26 @@
+package com.yxz.transaction;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 区块的撤销数据，记录连接该区块时对UTXO池所做的全部变更，用于断开区块
+ *
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class BlockUndo {
+
+    /**
+     * 区块哈希
+     */
+    private String blockHash;
+
+    /**
+     * 按发生顺序排列的UTXO变更
+     */
+    private UTXOUndo[] undos;
+}
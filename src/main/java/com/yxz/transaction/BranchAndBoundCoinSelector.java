@@ -0,0 +1,129 @@
+package com.yxz.transaction;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 分支定界选币，寻找总额恰好等于金额的组合，这样的交易不需要找零输出
+ * <p>
+ * 按金额从大到小对每个交易输出分别尝试选取与不选取，剩余交易输出的总额不足或者数量不可能更少时剪枝，
+ * 金额相同的交易输出不选取其中一个时其余也不再尝试。在尝试次数内返回交易输入最少的精确组合，
+ * 找不到时使用备用策略。
+ *
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+
+    /**
+     * 默认的最大尝试次数
+     */
+    private static final int DEFAULT_MAX_TRIES = 100000;
+
+    private final int maxTries;
+
+    /**
+     * 找不到精确组合时使用的策略
+     */
+    private final CoinSelector fallback;
+
+    public BranchAndBoundCoinSelector() {
+        this(DEFAULT_MAX_TRIES, new MinInputCountCoinSelector());
+    }
+
+    public BranchAndBoundCoinSelector(int maxTries, CoinSelector fallback) {
+        this.maxTries = maxTries;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public Map<OutPoint, TXOutput> select(Map<OutPoint, TXOutput> candidates, int amount) {
+        Search search = new Search(CoinSelector.sortByValueDescending(candidates), amount);
+        search.run(0, 0, new ArrayDeque<>());
+        if (search.best == null) {
+            return fallback.select(candidates, amount);
+        }
+        Map<OutPoint, TXOutput> selected = new LinkedHashMap<>();
+        for (int index : search.best) {
+            Map.Entry<OutPoint, TXOutput> entry = search.sorted.get(index);
+            selected.put(entry.getKey(), entry.getValue());
+        }
+        return selected;
+    }
+
+    /**
+     * 一次搜索的状态
+     */
+    private class Search {
+
+        private final List<Map.Entry<OutPoint, TXOutput>> sorted;
+
+        private final int[] values;
+
+        /**
+         * suffix[i] 为第i个及之后全部交易输出的总额
+         */
+        private final long[] suffix;
+
+        private final int amount;
+
+        private int tries;
+
+        /**
+         * 目前交易输入最少的精确组合，元素为sorted中的下标
+         */
+        private int[] best;
+
+        private Search(List<Map.Entry<OutPoint, TXOutput>> sorted, int amount) {
+            this.sorted = sorted;
+            this.amount = amount;
+            this.values = new int[sorted.size()];
+            this.suffix = new long[sorted.size() + 1];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = sorted.get(i).getValue().getValue();
+            }
+            for (int i = values.length - 1; i >= 0; i--) {
+                suffix[i] = suffix[i + 1] + values[i];
+            }
+        }
+
+        /**
+         * 从第start个交易输出开始搜索，只有选取时才递归，递归深度不超过选取的数量
+         *
+         * @param start  起始下标
+         * @param sum    已选取的总额
+         * @param chosen 已选取的下标
+         */
+        private void run(int start, long sum, Deque<Integer> chosen) {
+            int i = start;
+            while (i < values.length) {
+                if (tries++ >= maxTries || sum + suffix[i] < amount) {
+                    return;
+                }
+                if (best != null && chosen.size() + 1 >= best.length) {
+                    // 至少还要再选一个，不可能比已有组合更少
+                    return;
+                }
+                long withCurrent = sum + values[i];
+                if (withCurrent == amount) {
+                    chosen.addLast(i);
+                    best = chosen.stream().mapToInt(Integer::intValue).toArray();
+                    chosen.removeLast();
+                    return;
+                }
+                if (withCurrent < amount) {
+                    chosen.addLast(i);
+                    run(i + 1, withCurrent, chosen);
+                    chosen.removeLast();
+                }
+                // 不选取当前交易输出，金额相同的交易输出也跳过
+                int next = i + 1;
+                while (next < values.length && values[next] == values[i]) {
+                    next++;
+                }
+                i = next;
+            }
+        }
+    }
+}
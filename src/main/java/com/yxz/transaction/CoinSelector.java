@@ -0,0 +1,36 @@
+package com.yxz.transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 选币策略，从地址的全部UTXO中选出作为交易输入的交易输出
+ * <p>
+ * 每多一个交易输入，发送时就多一次签名，打包区块时就多一次验证和一次交易查询，
+ * 因此不同的策略会直接影响交易大小以及发送耗时。
+ *
+ */
+public interface CoinSelector {
+
+    /**
+     * 选出交易输出
+     *
+     * @param candidates 地址能够花费的全部交易输出，按地址索引的顺序排列
+     * @param amount     需要支付的金额
+     * @return 选中的交易输出，余额不足时返回的总额小于amount
+     */
+    Map<OutPoint, TXOutput> select(Map<OutPoint, TXOutput> candidates, int amount);
+
+    /**
+     * 按金额从大到小排序，金额相同时保持原有顺序
+     *
+     * @param candidates
+     * @return
+     */
+    static List<Map.Entry<OutPoint, TXOutput>> sortByValueDescending(Map<OutPoint, TXOutput> candidates) {
+        List<Map.Entry<OutPoint, TXOutput>> sorted = new ArrayList<>(candidates.entrySet());
+        sorted.sort((a, b) -> Integer.compare(b.getValue().getValue(), a.getValue().getValue()));
+        return sorted;
+    }
+}
@@ -0,0 +1,25 @@
+package com.yxz.transaction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按地址索引的顺序依次选取，直到总额达到金额，即原有的选币方式
+ *
+ */
+public class FirstFitCoinSelector implements CoinSelector {
+
+    @Override
+    public Map<OutPoint, TXOutput> select(Map<OutPoint, TXOutput> candidates, int amount) {
+        Map<OutPoint, TXOutput> selected = new LinkedHashMap<>();
+        int total = 0;
+        for (Map.Entry<OutPoint, TXOutput> entry : candidates.entrySet()) {
+            if (total >= amount) {
+                break;
+            }
+            selected.put(entry.getKey(), entry.getValue());
+            total += entry.getValue().getValue();
+        }
+        return selected;
+    }
+}
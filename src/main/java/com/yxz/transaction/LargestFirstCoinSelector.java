@@ -0,0 +1,25 @@
+package com.yxz.transaction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 优先选取金额最大的交易输出，直到总额达到金额
+ *
+ */
+public class LargestFirstCoinSelector implements CoinSelector {
+
+    @Override
+    public Map<OutPoint, TXOutput> select(Map<OutPoint, TXOutput> candidates, int amount) {
+        Map<OutPoint, TXOutput> selected = new LinkedHashMap<>();
+        int total = 0;
+        for (Map.Entry<OutPoint, TXOutput> entry : CoinSelector.sortByValueDescending(candidates)) {
+            if (total >= amount) {
+                break;
+            }
+            selected.put(entry.getKey(), entry.getValue());
+            total += entry.getValue().getValue();
+        }
+        return selected;
+    }
+}
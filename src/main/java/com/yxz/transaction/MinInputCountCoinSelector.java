@@ -0,0 +1,56 @@
+package com.yxz.transaction;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 使用最少的交易输入，交易输入数量相同时尽量减少找零
+ * <p>
+ * 最少的交易输入数量k即为按金额从大到小选取时达到金额所需的数量。
+ * 之后逐个确定k个位置：每个位置选取最小的交易输出，只要剩余位置放入最大的交易输出时仍然能够达到金额，
+ * 这样既不增加交易输入，也不会把大额的交易输出无谓地用掉。
+ *
+ */
+public class MinInputCountCoinSelector implements CoinSelector {
+
+    @Override
+    public Map<OutPoint, TXOutput> select(Map<OutPoint, TXOutput> candidates, int amount) {
+        List<Map.Entry<OutPoint, TXOutput>> available = CoinSelector.sortByValueDescending(candidates);
+        int count = 0;
+        long total = 0;
+        while (count < available.size() && total < amount) {
+            total += available.get(count++).getValue().getValue();
+        }
+        Map<OutPoint, TXOutput> selected = new LinkedHashMap<>();
+        if (total < amount) {
+            // 余额不足
+            for (Map.Entry<OutPoint, TXOutput> entry : available) {
+                selected.put(entry.getKey(), entry.getValue());
+            }
+            return selected;
+        }
+
+        long remaining = amount;
+        for (int slot = count - 1; slot >= 0; slot--) {
+            // 当前位置之后还有slot个位置，由剩余交易输出中最大的slot个填充
+            long[] prefix = new long[available.size() + 1];
+            for (int i = 0; i < available.size(); i++) {
+                prefix[i + 1] = prefix[i] + available.get(i).getValue().getValue();
+            }
+            int chosen = 0;
+            for (int i = available.size() - 1; i >= 0; i--) {
+                int value = available.get(i).getValue().getValue();
+                long largestOthers = i < slot ? prefix[slot + 1] - value : prefix[slot];
+                if (value + largestOthers >= remaining) {
+                    chosen = i;
+                    break;
+                }
+            }
+            Map.Entry<OutPoint, TXOutput> entry = available.remove(chosen);
+            selected.put(entry.getKey(), entry.getValue());
+            remaining -= entry.getValue().getValue();
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,143 @@
+package com.yxz.transaction;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bouncycastle.crypto.engines.ChaChaEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+
+import java.math.BigInteger;
+
+/**
+ * 与顺序无关的集合哈希（MuHash3072），用于UTXO池的承诺值
+ * <p>
+ * 每个元素先做SHA-256，再以其为密钥用ChaCha20扩展为3072位整数，集合的哈希为全部元素在模 2^3072 - 1103717 下的乘积。
+ * 插入一个元素乘上它，删除一个元素乘上它的逆元，因此每次增删都是常数时间，结果与增删顺序无关。
+ * 为了避免每次删除都求逆元，插入与删除分别累积在分子和分母中，只在输出结果时求一次逆元。
+ *
+ */
+public class MuHash {
+
+    /**
+     * 3072位整数的字节长度
+     */
+    public static final int BYTE_SIZE = 384;
+
+    /**
+     * 模数，小于 2^3072 的最大素数
+     */
+    private static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(3072).subtract(BigInteger.valueOf(1103717));
+
+    /**
+     * 插入元素的乘积
+     */
+    private BigInteger numerator;
+
+    /**
+     * 删除元素的乘积
+     */
+    private BigInteger denominator;
+
+    /**
+     * 空集合
+     */
+    public MuHash() {
+        this(BigInteger.ONE, BigInteger.ONE);
+    }
+
+    private MuHash(BigInteger numerator, BigInteger denominator) {
+        this.numerator = numerator;
+        this.denominator = denominator;
+    }
+
+    /**
+     * 从 toBytes 的结果恢复
+     *
+     * @param bytes 小端序的3072位整数
+     * @return
+     */
+    public static MuHash fromBytes(byte[] bytes) {
+        if (bytes.length != BYTE_SIZE) {
+            throw new RuntimeException("Fail to read MuHash ! invalid length=" + bytes.length);
+        }
+        return new MuHash(fromLittleEndian(bytes), BigInteger.ONE);
+    }
+
+    public MuHash copy() {
+        return new MuHash(numerator, denominator);
+    }
+
+    /**
+     * 插入元素
+     *
+     * @param element 元素的序列化数据
+     */
+    public void insert(byte[] element) {
+        numerator = numerator.multiply(toNum3072(element)).mod(MODULUS);
+    }
+
+    /**
+     * 删除元素，元素需要之前已经插入过
+     *
+     * @param element 元素的序列化数据
+     */
+    public void remove(byte[] element) {
+        denominator = denominator.multiply(toNum3072(element)).mod(MODULUS);
+    }
+
+    /**
+     * 合并另一个集合的增删
+     *
+     * @param other
+     */
+    public void combine(MuHash other) {
+        numerator = numerator.multiply(other.numerator).mod(MODULUS);
+        denominator = denominator.multiply(other.denominator).mod(MODULUS);
+    }
+
+    /**
+     * 集合对应的3072位整数，小端序，用于持久化
+     *
+     * @return
+     */
+    public byte[] toBytes() {
+        BigInteger value = numerator.multiply(denominator.modInverse(MODULUS)).mod(MODULUS);
+        byte[] bigEndian = value.toByteArray();
+        byte[] bytes = new byte[BYTE_SIZE];
+        // toByteArray 可能带有一个符号字节
+        for (int i = 0; i < BYTE_SIZE && i < bigEndian.length; i++) {
+            bytes[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return bytes;
+    }
+
+    /**
+     * 集合的哈希值，即 toBytes 结果的SHA-256
+     *
+     * @return
+     */
+    public byte[] digest() {
+        return DigestUtils.sha256(toBytes());
+    }
+
+    /**
+     * 把元素映射为3072位整数
+     *
+     * @param element
+     * @return
+     */
+    private static BigInteger toNum3072(byte[] element) {
+        ChaChaEngine chaCha = new ChaChaEngine(20);
+        chaCha.init(true, new ParametersWithIV(new KeyParameter(DigestUtils.sha256(element)), new byte[8]));
+        byte[] stream = new byte[BYTE_SIZE];
+        chaCha.processBytes(new byte[BYTE_SIZE], 0, BYTE_SIZE, stream, 0);
+        return fromLittleEndian(stream);
+    }
+
+    private static BigInteger fromLittleEndian(byte[] bytes) {
+        byte[] bigEndian = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            bigEndian[i] = bytes[bytes.length - 1 - i];
+        }
+        return new BigInteger(1, bigEndian);
+    }
+}
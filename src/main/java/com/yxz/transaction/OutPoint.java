@@ -0,0 +1,77 @@
+package com.yxz.transaction;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 交易输出的位置，由交易ID和交易输出索引组成，是UTXO池中每条记录的键
+ * <p>
+ * 交易输出被花费后其余交易输出的索引保持不变
+ *
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class OutPoint {
+
+    /**
+     * 交易ID与交易输出索引之间的分隔符
+     */
+    private static final char SEPARATOR = ':';
+
+    /**
+     * 交易ID
+     */
+    private String txId;
+
+    /**
+     * 交易输出索引
+     */
+    private int index;
+
+    /**
+     * 存储使用的键，'txid:index'
+     *
+     * @return
+     */
+    public String key() {
+        return key(txId, index);
+    }
+
+    /**
+     * 存储使用的键，'txid:index'
+     *
+     * @param txId  交易ID
+     * @param index 交易输出索引
+     * @return
+     */
+    public static String key(String txId, int index) {
+        return txId + SEPARATOR + index;
+    }
+
+    /**
+     * 同一交易全部交易输出的键前缀，'txid:'
+     *
+     * @param txId 交易ID
+     * @return
+     */
+    public static String keyPrefix(String txId) {
+        return txId + SEPARATOR;
+    }
+
+    /**
+     * 解析存储使用的键
+     *
+     * @param key 'txid:index'
+     * @return
+     */
+    public static OutPoint parse(String key) {
+        int separator = key.lastIndexOf(SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalArgumentException("Fail to parse out point ! key=" + key);
+        }
+        return new OutPoint(key.substring(0, separator), Integer.parseInt(key.substring(separator + 1)));
+    }
+}
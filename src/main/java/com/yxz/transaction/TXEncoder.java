@@ -0,0 +1,189 @@
+package com.yxz.transaction;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * 交易的规范编码
+ * <p>
+ * 编码格式固定，不包含类名，也不依赖Kryo：
+ * 1. 整数使用varint编码，可能为负数的字段（输出索引、金额）先做zigzag变换；
+ * 2. 字节数组和数组先写入长度加1，0表示null；
+ * 3. 交易ID本身不参与编码。
+ * <p>
+ * 计算交易ID时编码结果直接写入线程内复用的SHA-256摘要，不生成中间数组，也不复制交易对象。
+ */
+public class TXEncoder {
+
+    /**
+     * 编码格式版本
+     */
+    private static final int ENCODING_VERSION = 1;
+
+    /**
+     * 表示不是在计算签名数据
+     */
+    private static final int NO_SIGN_INDEX = -1;
+
+    /**
+     * 线程内复用的摘要
+     */
+    private static final ThreadLocal<DigestSink> DIGEST_SINK = ThreadLocal.withInitial(DigestSink::new);
+
+    /**
+     * 获取交易的规范编码
+     *
+     * @param tx 交易
+     * @return
+     */
+    public static byte[] encode(Transaction tx) {
+        ByteArraySink sink = new ByteArraySink();
+        writeTransaction(sink, tx, NO_SIGN_INDEX, null);
+        return sink.toByteArray();
+    }
+
+    /**
+     * 计算交易ID，即规范编码的SHA-256
+     *
+     * @param tx 交易
+     * @return
+     */
+    public static byte[] hash(Transaction tx) {
+        DigestSink sink = DIGEST_SINK.get();
+        sink.reset();
+        writeTransaction(sink, tx, NO_SIGN_INDEX, null);
+        return sink.digest();
+    }
+
+    /**
+     * 计算第signIndex个交易输入的签名数据
+     * 所有交易输入的签名置为null，被签名的交易输入的公钥替换为上一笔交易输出的公钥Hash，其余交易输入的公钥置为null
+     *
+     * @param tx                交易
+     * @param signIndex         被签名的交易输入索引
+     * @param prevPublicKeyHash 被引用的交易输出的公钥Hash
+     * @return
+     */
+    public static byte[] signatureHash(Transaction tx, int signIndex, byte[] prevPublicKeyHash) {
+        DigestSink sink = DIGEST_SINK.get();
+        sink.reset();
+        writeTransaction(sink, tx, signIndex, prevPublicKeyHash);
+        return sink.digest();
+    }
+
+    private static void writeTransaction(Sink sink, Transaction tx, int signIndex, byte[] prevPublicKeyHash) {
+        sink.writeVarInt(ENCODING_VERSION);
+        TXInput[] inputs = tx.getInputs();
+        if (inputs == null) {
+            sink.writeVarInt(0);
+        } else {
+            sink.writeVarInt(inputs.length + 1);
+            for (int i = 0; i < inputs.length; i++) {
+                TXInput input = inputs[i];
+                if (signIndex == NO_SIGN_INDEX) {
+                    writeInput(sink, input, input.getSignature(), input.getPublicKey());
+                } else {
+                    writeInput(sink, input, null, i == signIndex ? prevPublicKeyHash : null);
+                }
+            }
+        }
+        TXOutput[] outputs = tx.getOutputs();
+        if (outputs == null) {
+            sink.writeVarInt(0);
+        } else {
+            sink.writeVarInt(outputs.length + 1);
+            for (TXOutput output : outputs) {
+                sink.writeVarInt(zigzag(output.getValue()));
+                sink.writeBytes(output.getPublicKeyHash());
+            }
+        }
+    }
+
+    private static void writeInput(Sink sink, TXInput input, byte[] signature, byte[] publicKey) {
+        sink.writeBytes(input.getTxId());
+        sink.writeVarInt(zigzag(input.getTxOutputIndex()));
+        sink.writeBytes(signature);
+        sink.writeBytes(publicKey);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * 编码结果的写入目标
+     */
+    private static abstract class Sink {
+
+        abstract void write(int b);
+
+        abstract void write(byte[] bytes);
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeBytes(byte[] bytes) {
+            if (bytes == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(bytes.length + 1);
+            write(bytes);
+        }
+    }
+
+    private static class DigestSink extends Sink {
+
+        private final MessageDigest digest = DigestUtils.getSha256Digest();
+
+        @Override
+        void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        void write(byte[] bytes) {
+            digest.update(bytes);
+        }
+
+        /**
+         * 丢弃上一次未完成的编码
+         */
+        void reset() {
+            digest.reset();
+        }
+
+        /**
+         * 获取摘要结果并重置摘要
+         */
+        byte[] digest() {
+            return digest.digest();
+        }
+    }
+
+    private static class ByteArraySink extends Sink {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        @Override
+        void write(int b) {
+            out.write(b);
+        }
+
+        @Override
+        void write(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
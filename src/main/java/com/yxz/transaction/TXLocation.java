@@ -0,0 +1,26 @@
+package com.yxz.transaction;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 交易索引，记录交易所在的区块以及在区块中的位置
+ *
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class TXLocation {
+
+    /**
+     * 交易所在区块的哈希值
+     */
+    private String blockHash;
+
+    /**
+     * 交易在区块交易列表中的下标
+     */
+    private int index;
+}
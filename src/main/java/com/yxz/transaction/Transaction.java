@@ -2,14 +2,12 @@ package com.yxz.transaction;
 
 import com.yxz.block.Blockchain;
 import com.yxz.util.AddressUtil;
-import com.yxz.util.SerializeUtil;
 import com.yxz.util.WalletUtil;
 import com.yxz.wallet.Wallet;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPrivateKey;
@@ -72,15 +70,12 @@ public class Transaction {
 
 
     /**
-     * 计算交易信息的Hash值
+     * 计算交易信息的Hash值，交易ID不参与计算
      *
      * @return
      */
     public byte[] hash() {
-        byte[] serializeBytes = SerializeUtil.serialize(this);
-        Transaction copyTx = (Transaction) SerializeUtil.deserialize(serializeBytes);
-        copyTx.setTxId(new byte[]{});
-        return DigestUtils.sha256(SerializeUtil.serialize(copyTx));
+        return TXEncoder.hash(this);
     }
 
     /**
@@ -121,6 +116,22 @@ public class Transaction {
 
 
     public static Transaction newTransaction (String from, String to, int amount, Blockchain blockchain) throws Exception {
+        return newTransaction(from, to, amount, blockchain, null);
+    }
+
+    /**
+     * 创建交易
+     *
+     * @param from         发送方钱包地址
+     * @param to           接收方钱包地址
+     * @param amount       金额
+     * @param blockchain   区块链
+     * @param coinSelector 选币策略，为null时按地址索引的顺序选取
+     * @return
+     * @throws Exception
+     */
+    public static Transaction newTransaction(String from, String to, int amount, Blockchain blockchain,
+                                             CoinSelector coinSelector) throws Exception {
         //禁止自己与自己交易
         if (from.equals(to)) {
             System.out.println("ERROR: Prohibit oneself from trading with oneself!");
@@ -139,7 +150,10 @@ public class Transaction {
         byte[] publicKeyHash = AddressUtil.ripeMD160Hash(publicKey);
 
         //需要发款方寻找能够花费的交易
-        SpendableTXOutput spendableTXOutputs = new UTXOSet(blockchain).findSpendableTXOutputs(publicKeyHash, amount);
+        UTXOSet utxoSet = new UTXOSet(blockchain);
+        SpendableTXOutput spendableTXOutputs = coinSelector == null
+                ? utxoSet.findSpendableTXOutputs(publicKeyHash, amount)
+                : utxoSet.findSpendableTXOutputs(publicKeyHash, amount, coinSelector);
         int total = spendableTXOutputs.getTotal();
         Map<String, int[]> unspentTXOs = spendableTXOutputs.getUnspentTXOs();
 
@@ -182,29 +196,6 @@ public class Transaction {
 
 
 
-    /**
-     * 创建用于签名的交易数据副本
-     * 其中交易输入的signature和publicKey需要设置为null
-     *
-     * @return
-     */
-    public Transaction trimmedCopy() {
-        TXInput[] tmpTXInputs = new TXInput[this.getInputs().length];
-        for (int i = 0; i < this.getInputs().length; i++) {
-            TXInput txInput = this.getInputs()[i];
-            tmpTXInputs[i] = new TXInput(txInput.getTxId(), txInput.getTxOutputIndex(), null, null);
-        }
-
-        TXOutput[] tmpTXOutputs = new TXOutput[this.getOutputs().length];
-        for (int i = 0; i < this.getOutputs().length; i++) {
-            TXOutput txOutput = this.getOutputs()[i];
-            tmpTXOutputs[i] = new TXOutput(txOutput.getValue(), txOutput.getPublicKeyHash());
-        }
-
-        return new Transaction(this.getTxId(), tmpTXInputs, tmpTXOutputs);
-    }
-
-
     /**
      *
      * 签名
@@ -226,27 +217,21 @@ public class Transaction {
             }
         }
 
-        //创建用于签名的交易信息的副本
-        Transaction txCopy = this.trimmedCopy();
-
         Security.addProvider(new BouncyCastleProvider());
         Signature ecdsaSign = Signature.getInstance(ALGORITHM, BouncyCastleProvider.PROVIDER_NAME);
         ecdsaSign.initSign(privateKey);
 
-        for (int i = 0; i < txCopy.getInputs().length; i++) {
-            TXInput txInputCopy = txCopy.getInputs()[i];
+        for (int i = 0; i < this.getInputs().length; i++) {
+            TXInput txInput = this.getInputs()[i];
             // 获取交易输入TxID对应的交易数据
-            Transaction prevTx = prevTX.get(Hex.encodeHexString(txInputCopy.getTxId()));
+            Transaction prevTx = prevTX.get(Hex.encodeHexString(txInput.getTxId()));
             // 获取交易输入所对应的上一笔交易中的交易输出
-            TXOutput prevTxOutput = prevTx.getOutputs()[txInputCopy.getTxOutputIndex()];
-            txInputCopy.setPublicKey(prevTxOutput.getPublicKeyHash());
-            txInputCopy.setSignature(null);
-            // 得到要签名的数据，即交易ID
-            txCopy.setTxId(txCopy.hash());
-            txInputCopy.setPublicKey(null);
-
-            // 对整个交易信息仅进行签名，即对交易ID进行签名
-            ecdsaSign.update(txCopy.getTxId());
+            TXOutput prevTxOutput = prevTx.getOutputs()[txInput.getTxOutputIndex()];
+            // 得到要签名的数据，签名和公钥不参与计算，当前交易输入的公钥替换为上一笔交易输出的公钥Hash
+            byte[] signatureHash = TXEncoder.signatureHash(this, i, prevTxOutput.getPublicKeyHash());
+
+            // 对签名数据进行签名
+            ecdsaSign.update(signatureHash);
             byte[] signature = ecdsaSign.sign();
 
             // 将整个交易数据的签名赋值给交易输入，因为交易输入需要包含整个交易信息的签名
@@ -277,9 +262,6 @@ public class Transaction {
             }
         }
 
-        // 创建用于签名验证的交易信息的副本
-        Transaction txCopy = this.trimmedCopy();
-
         Security.addProvider(new BouncyCastleProvider());
         ECParameterSpec ecParameters = ECNamedCurveTable.getParameterSpec("secp256k1");
         KeyFactory keyFactory = KeyFactory.getInstance("ECDSA", BouncyCastleProvider.PROVIDER_NAME);
@@ -291,13 +273,8 @@ public class Transaction {
             Transaction prevTx = prevTX.get(Hex.encodeHexString(txInput.getTxId()));
             //获取交易输入所对应的上一笔交易中的交易输出
             TXOutput prevTxOutput = prevTx.getOutputs()[txInput.getTxOutputIndex()];
-
-            TXInput txInputCopy = txCopy.getInputs()[i];
-            txInputCopy.setSignature(null);
-            txInputCopy.setPublicKey(prevTxOutput.getPublicKeyHash());
-            //得到要签名的数据，即交易ID
-            txCopy.setTxId(txCopy.hash());
-            txInputCopy.setPublicKey(null);
+            //得到签名数据
+            byte[] signatureHash = TXEncoder.signatureHash(this, i, prevTxOutput.getPublicKeyHash());
 
             //使用交易输入中的椭圆曲线公钥点对（x,y）
             BigInteger x = new BigInteger(1, Arrays.copyOfRange(txInput.getPublicKey(), 1, 33));
@@ -308,7 +285,7 @@ public class Transaction {
             ECPublicKeySpec keySpec = new ECPublicKeySpec(ecPoint, ecParameters);
             PublicKey publicKey = keyFactory.generatePublic(keySpec);
             ecdsaVerify.initVerify(publicKey);
-            ecdsaVerify.update(txCopy.getTxId());
+            ecdsaVerify.update(signatureHash);
             if (!ecdsaVerify.verify(txInput.getSignature())) {
                 return false;
             }
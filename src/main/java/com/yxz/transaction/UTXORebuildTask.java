@@ -0,0 +1,108 @@
+package com.yxz.transaction;
+
+import com.yxz.block.Block;
+import com.yxz.store.ChainStore;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 并行重建UTXO池的分治任务
+ * <p>
+ * 每个任务负责一段连续高度的区块，按正向顺序计算这段区块对每个交易输出位置的最终影响：
+ * 最后一次是创建则为该交易输出，最后一次是花费则为null。
+ * 相邻两段的结果合并时，较高一段中出现的交易输出位置覆盖较低一段，因此合并结果与逐个区块连接完全一致。
+ *
+ */
+public class UTXORebuildTask extends RecursiveTask<Map<OutPoint, TXOutput>> {
+
+    private static final long serialVersionUID = 4870394576131409827L;
+
+    /**
+     * 不再拆分的区块数量
+     */
+    private static final int THRESHOLD = 64;
+
+    private final ChainStore chainStore;
+
+    private final long fromHeight;
+
+    private final long toHeight;
+
+    /**
+     * @param chainStore 区块链存储
+     * @param fromHeight 起始高度，包含
+     * @param toHeight   结束高度，包含
+     */
+    public UTXORebuildTask(ChainStore chainStore, long fromHeight, long toHeight) {
+        this.chainStore = chainStore;
+        this.fromHeight = fromHeight;
+        this.toHeight = toHeight;
+    }
+
+    @Override
+    protected Map<OutPoint, TXOutput> compute() {
+        if (toHeight - fromHeight + 1 <= THRESHOLD) {
+            return computeDirectly();
+        }
+        long middle = (fromHeight + toHeight) >>> 1;
+        UTXORebuildTask lower = new UTXORebuildTask(chainStore, fromHeight, middle);
+        UTXORebuildTask upper = new UTXORebuildTask(chainStore, middle + 1, toHeight);
+        lower.fork();
+        Map<OutPoint, TXOutput> upperChanges = upper.compute();
+        return merge(lower.join(), upperChanges);
+    }
+
+    /**
+     * 依次处理区块，与 UTXOSet.update 的顺序一致：先花费交易输入引用的交易输出，再创建新的交易输出
+     *
+     * @return
+     */
+    private Map<OutPoint, TXOutput> computeDirectly() {
+        Map<OutPoint, TXOutput> changes = new HashMap<>();
+        for (long height = fromHeight; height <= toHeight; height++) {
+            String blockHash = chainStore.getBlockHash(height);
+            Block block = blockHash.length() == 0 ? null : chainStore.getBlock(blockHash);
+            if (block == null) {
+                System.out.println("Fail to rebuild UTXO set ! block is missing ! height=" + height);
+                throw new RuntimeException("Fail to rebuild UTXO set ! block is missing ! height=" + height);
+            }
+            for (Transaction transaction : block.getTransactions()) {
+                if (!transaction.isCoinbase()) {
+                    for (TXInput txInput : transaction.getInputs()) {
+                        changes.put(new OutPoint(Hex.encodeHexString(txInput.getTxId()), txInput.getTxOutputIndex()), null);
+                    }
+                }
+                String txId = Hex.encodeHexString(transaction.getTxId());
+                TXOutput[] txOutputs = transaction.getOutputs();
+                for (int index = 0; index < txOutputs.length; index++) {
+                    changes.put(new OutPoint(txId, index), txOutputs[index]);
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * 合并相邻两段的结果，把较小的一方合并到较大的一方
+     *
+     * @param lower 较低一段的结果
+     * @param upper 较高一段的结果
+     * @return
+     */
+    private static Map<OutPoint, TXOutput> merge(Map<OutPoint, TXOutput> lower, Map<OutPoint, TXOutput> upper) {
+        if (lower.size() >= upper.size()) {
+            lower.putAll(upper);
+            return lower;
+        }
+        for (Map.Entry<OutPoint, TXOutput> entry : lower.entrySet()) {
+            // 值可能为null，不能使用putIfAbsent
+            if (!upper.containsKey(entry.getKey())) {
+                upper.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return upper;
+    }
+}
@@ -3,8 +3,8 @@ package com.yxz.transaction;
 
 import com.yxz.block.Block;
 import com.yxz.block.Blockchain;
-import com.yxz.util.LevelDBUtil;
-import com.yxz.util.SerializeUtil;
+import com.yxz.store.BlockConnectBatch;
+import com.yxz.store.ChainStore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -12,8 +12,12 @@ import lombok.Synchronized;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang3.ArrayUtils;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * UTXO池，为了优化查询速度
@@ -36,16 +40,131 @@ public class UTXOSet {
     @Synchronized
     public void reset() throws Exception {
         System.out.println("Start to reset UTXO set !");
-        LevelDBUtil.getInstance().cleanChainStateBucket();
-        Map<String, TXOutput[]> allUTXOs = blockchain.findAllUTXOs();
-        for (Map.Entry<String, TXOutput[]> entry : allUTXOs.entrySet()) {
-            LevelDBUtil.getInstance().putUTXOs(entry.getKey(), entry.getValue());
-        }
+        // 先从区块链中找出全部UTXO，区块被裁剪时在清空UTXO池之前失败
+        Map<OutPoint, TXOutput> allUTXOs = blockchain.findAllUTXOs();
+        this.replaceAll(allUTXOs);
         System.out.println("Reset UTXO set finished ! ");
     }
 
     /**
-     * 寻找地址对应的能够花费的交易
+     * 并行重置UTXO池，按高度把区块链拆分为多段，各段并行计算创建与花费的交易输出后合并
+     *
+     * @param parallelism 并行线程数
+     */
+    @Synchronized
+    public void reset(int parallelism) throws Exception {
+        System.out.println("Start to reset UTXO set ! parallelism=" + parallelism);
+        long start = System.nanoTime();
+        Map<OutPoint, TXOutput> allUTXOs = this.findAllUTXOs(parallelism);
+        long computeMillis = (System.nanoTime() - start) / 1000000;
+        this.replaceAll(allUTXOs);
+        System.out.printf("Reset UTXO set finished ! utxos=%d, compute=%d ms, total=%d ms\n",
+                allUTXOs.size(), computeMillis, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * 流式重置UTXO池，按正向顺序逐个区块花费和创建交易输出，变更分批直接写入存储
+     * <p>
+     * 不在内存中构建全部UTXO，峰值内存只与批次大小相关。
+     * 每个批次在区块边界提交，并把UTXO池对应的区块记为该批次的最后一个区块，
+     * 重建中途退出时，下次启动会从该区块继续重放。
+     *
+     * @param batchSize 每个批次最多包含的UTXO变更数量，达到后在当前区块结束时提交
+     */
+    @Synchronized
+    public void resetStreaming(int batchSize) throws Exception {
+        if (batchSize <= 0) {
+            System.out.println("Fail to reset UTXO set ! batch size must be positive ! batchSize=" + batchSize);
+            throw new RuntimeException("Fail to reset UTXO set ! batch size must be positive ! batchSize=" + batchSize);
+        }
+        System.out.println("Start to reset UTXO set ! batchSize=" + batchSize);
+        blockchain.requireFullHistory("reset UTXO set");
+        long start = System.nanoTime();
+        ChainStore chainStore = blockchain.getChainStore();
+        Block tip = chainStore.getBlockHeader(chainStore.getLastBlockHash());
+        chainStore.cleanChainStateBucket();
+        if (tip == null) {
+            System.out.println("Reset UTXO set finished ! ");
+            return;
+        }
+        int batches = 0;
+        BlockConnectBatch batch = chainStore.beginBlockConnect();
+        for (long height = 0; height <= tip.getHeight(); height++) {
+            Block block = chainStore.getBlock(chainStore.getBlockHash(height));
+            if (block == null) {
+                System.out.println("Fail to reset UTXO set ! block is missing ! height=" + height);
+                throw new RuntimeException("Fail to reset UTXO set ! block is missing ! height=" + height);
+            }
+            for (Transaction transaction : block.getTransactions()) {
+                // 未被创建的交易输出删除后仍然不存在，无需先查询
+                if (!transaction.isCoinbase()) {
+                    for (TXInput txInput : transaction.getInputs()) {
+                        batch.deleteUTXO(Hex.encodeHexString(txInput.getTxId()), txInput.getTxOutputIndex());
+                    }
+                }
+                TXOutput[] txOutputs = transaction.getOutputs();
+                String txId = Hex.encodeHexString(transaction.getTxId());
+                for (int index = 0; index < txOutputs.length; index++) {
+                    batch.putUTXO(txId, index, txOutputs[index]);
+                }
+            }
+            batch.putChainstateHash(block.getHash());
+            if (batch.getUTXOChangeCount() >= batchSize || height == tip.getHeight()) {
+                batch.writeThrough();
+                batch.commit();
+                batch = chainStore.beginBlockConnect();
+                batches++;
+            }
+        }
+        System.out.printf("Reset UTXO set finished ! blocks=%d, batches=%d, total=%d ms\n",
+                tip.getHeight() + 1, batches, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * 并行计算最新区块对应的全部UTXO，结果与逐个区块连接得到的UTXO池一致
+     *
+     * @param parallelism 并行线程数
+     * @return
+     */
+    public Map<OutPoint, TXOutput> findAllUTXOs(int parallelism) {
+        blockchain.requireFullHistory("find all UTXOs");
+        ChainStore chainStore = blockchain.getChainStore();
+        Block tip = chainStore.getBlockHeader(chainStore.getLastBlockHash());
+        Map<OutPoint, TXOutput> allUTXOs = new HashMap<>();
+        if (tip == null) {
+            return allUTXOs;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Map<OutPoint, TXOutput> changes = pool.invoke(new UTXORebuildTask(chainStore, 0, tip.getHeight()));
+            for (Map.Entry<OutPoint, TXOutput> entry : changes.entrySet()) {
+                if (entry.getValue() != null) {
+                    allUTXOs.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return allUTXOs;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 清空UTXO池后写入全部UTXO
+     *
+     * @param allUTXOs
+     */
+    private void replaceAll(Map<OutPoint, TXOutput> allUTXOs) {
+        blockchain.getChainStore().cleanChainStateBucket();
+        BlockConnectBatch batch = blockchain.getChainStore().beginBlockConnect();
+        for (Map.Entry<OutPoint, TXOutput> entry : allUTXOs.entrySet()) {
+            batch.putUTXO(entry.getKey().getTxId(), entry.getKey().getIndex(), entry.getValue());
+        }
+        batch.writeThrough();
+        batch.commit();
+    }
+
+    /**
+     * 寻找地址对应的能够花费的交易，只遍历地址索引中该地址的交易输出
      *
      * @param publicKeyHash
      * @param amount
@@ -56,32 +175,44 @@ public class UTXOSet {
 
         int total = 0;
         Map<String, int[]> unspentTXOs = new HashMap<>();
-        Map<String, byte[]> chainstateBucket = LevelDBUtil.getInstance().getChainstateBucket();
-        for (Map.Entry<String, byte[]> entry : chainstateBucket.entrySet()) {
-            String txId = entry.getKey();
-            TXOutput[] outputs = (TXOutput[]) SerializeUtil.deserialize(entry.getValue());
-
-            //遍历所有交易输出
-            for (int i = 0; i < outputs.length; i++) {
-                TXOutput txOutput = outputs[i];
-                //寻找能被地址解锁的交易输出，并且综合小于金额
-                if (txOutput.canBeUnlockedWithKey(publicKeyHash) && total < amount) {
-                    total += txOutput.getValue();
-
-                    int[] outIds = unspentTXOs.get(txId);
-                    if (outIds == null) {
-                        outIds = new int[]{i};
-                    } else {
-                        outIds = ArrayUtils.add(outIds, i);
-                    }
-                    unspentTXOs.put(txId, outIds);
-                    if (total >= amount) {
-                        break;
-                    }
-                }
+        for (OutPoint outPoint : blockchain.getChainStore().getUTXOOutPoints(publicKeyHash)) {
+            TXOutput txOutput = blockchain.getChainStore().getUTXO(outPoint.getTxId(), outPoint.getIndex());
+            //寻找能被地址解锁的交易输出，交易输出索引即为交易输入需要引用的索引
+            if (txOutput == null || !txOutput.canBeUnlockedWithKey(publicKeyHash)) {
+                continue;
+            }
+            total += txOutput.getValue();
+            unspentTXOs.put(outPoint.getTxId(), ArrayUtils.add(unspentTXOs.get(outPoint.getTxId()), outPoint.getIndex()));
+            if (total >= amount) {
+                break;
+            }
+        }
+        return new SpendableTXOutput(total, unspentTXOs);
+    }
 
+    /**
+     * 按选币策略寻找地址对应的能够花费的交易，先取出该地址的全部交易输出，再由策略选取
+     *
+     * @param publicKeyHash
+     * @param amount
+     * @param coinSelector 选币策略
+     * @return
+     */
+    public SpendableTXOutput findSpendableTXOutputs(byte[] publicKeyHash, int amount, CoinSelector coinSelector) {
+        Map<OutPoint, TXOutput> candidates = new LinkedHashMap<>();
+        for (OutPoint outPoint : blockchain.getChainStore().getUTXOOutPoints(publicKeyHash)) {
+            TXOutput txOutput = blockchain.getChainStore().getUTXO(outPoint.getTxId(), outPoint.getIndex());
+            if (txOutput != null && txOutput.canBeUnlockedWithKey(publicKeyHash)) {
+                candidates.put(outPoint, txOutput);
             }
         }
+        int total = 0;
+        Map<String, int[]> unspentTXOs = new LinkedHashMap<>();
+        for (Map.Entry<OutPoint, TXOutput> entry : coinSelector.select(candidates, amount).entrySet()) {
+            OutPoint outPoint = entry.getKey();
+            total += entry.getValue().getValue();
+            unspentTXOs.put(outPoint.getTxId(), ArrayUtils.add(unspentTXOs.get(outPoint.getTxId()), outPoint.getIndex()));
+        }
         return new SpendableTXOutput(total, unspentTXOs);
     }
 
@@ -92,73 +223,112 @@ public class UTXOSet {
      * @return
      */
     public TXOutput[] findUTXO(byte[] publicKeyHash) throws Exception {
-        Map<String, byte[]> chainstateBucket = LevelDBUtil.getInstance().getChainstateBucket();
         TXOutput[] utxos = {};
-        if (chainstateBucket.isEmpty()) {
-            return utxos;
-        }
-        for (byte[] value : chainstateBucket.values()) {
-            TXOutput[] txOutputs = (TXOutput[]) SerializeUtil.deserialize(value);
-            for (TXOutput txOutput : txOutputs) {
-                if (txOutput.canBeUnlockedWithKey(publicKeyHash)) {
-                    utxos = ArrayUtils.add(utxos, txOutput);
-                }
+        for (OutPoint outPoint : blockchain.getChainStore().getUTXOOutPoints(publicKeyHash)) {
+            TXOutput txOutput = blockchain.getChainStore().getUTXO(outPoint.getTxId(), outPoint.getIndex());
+            if (txOutput != null && txOutput.canBeUnlockedWithKey(publicKeyHash)) {
+                utxos = ArrayUtils.add(utxos, txOutput);
             }
         }
         return utxos;
     }
 
 
+    /**
+     * 更新UTXO池，单独提交一个批次
+     *
+     * @param lastBlock 最新的区块
+     */
+    @Synchronized
+    public void update(Block lastBlock) {
+        BlockConnectBatch batch = blockchain.getChainStore().beginBlockConnect();
+        this.update(lastBlock, batch);
+        batch.commit();
+    }
+
     /**
      * 更新UTXO池
      * <p>
      * 当一个新的区块产生时，需要去做两件事情：
-     * 1）从UTXO池中移除花费掉了的交易输出；
-     * 2）保存新的未花费交易输出；
+     * 1）从UTXO池中移除花费掉了的交易输出，每个交易输入只删除一条记录；
+     * 2）保存新的未花费交易输出，每个交易输出单独一条记录；
+     * 同时记录区块的撤销数据，所有变更只写入批次，由调用方与区块一起提交
      *
      * @param lastBlock 最新的区块
+     * @param batch     区块连接批次
      */
     @Synchronized
-    public void update(Block lastBlock) {
+    public void update(Block lastBlock, BlockConnectBatch batch) {
         if (lastBlock == null) {
             System.out.println("Fail to update UTXO set ! lastBlock is null !");
             throw new RuntimeException("Fail to update UTXO set ! ");
         }
+        List<UTXOUndo> undos = new ArrayList<>();
         for (Transaction transaction : lastBlock.getTransactions()) {
 
-            // 根据交易输入排查出剩余未被使用的交易输出
+            // 删除被交易输入花费的交易输出，其余交易输出的索引保持不变
             if (!transaction.isCoinbase()) {
                 for (TXInput txInput : transaction.getInputs()) {
-                    // 余下未被使用的交易输出
-                    TXOutput[] remainderUTXOs = {};
                     String txId = Hex.encodeHexString(txInput.getTxId());
-                    TXOutput[] txOutputs = LevelDBUtil.getInstance().getUTXOs(txId);
-
-                    if (txOutputs == null) {
+                    int index = txInput.getTxOutputIndex();
+                    TXOutput spentOutput = batch.getUTXO(txId, index);
+                    if (spentOutput == null) {
                         continue;
                     }
-
-                    for (int outIndex = 0; outIndex < txOutputs.length; outIndex++) {
-                        if (outIndex != txInput.getTxOutputIndex()) {
-                            remainderUTXOs = ArrayUtils.add(remainderUTXOs, txOutputs[outIndex]);
-                        }
-                    }
-
-                    //没有剩余则删除，否则更新
-                    if (remainderUTXOs.length == 0) {
-                        LevelDBUtil.getInstance().deleteUTXOs(txId);
-                    } else {
-                        LevelDBUtil.getInstance().putUTXOs(txId, remainderUTXOs);
-                    }
+                    undos.add(new UTXOUndo(txId, index, spentOutput));
+                    batch.deleteUTXO(txId, index);
                 }
             }
 
             //新的交易输出保存到DB中
             TXOutput[] txOutputs = transaction.getOutputs();
             String txId = Hex.encodeHexString(transaction.getTxId());
-            LevelDBUtil.getInstance().putUTXOs(txId, txOutputs);
+            for (int index = 0; index < txOutputs.length; index++) {
+                undos.add(new UTXOUndo(txId, index, batch.getUTXO(txId, index)));
+                batch.putUTXO(txId, index, txOutputs[index]);
+            }
         }
+        batch.putBlockUndo(new BlockUndo(lastBlock.getHash(), undos.toArray(new UTXOUndo[0])));
+        batch.putChainstateHash(lastBlock.getHash());
+    }
 
+    /**
+     * 断开区块，单独提交一个批次
+     *
+     * @param block 最新的区块
+     */
+    @Synchronized
+    public void disconnect(Block block) {
+        BlockConnectBatch batch = blockchain.getChainStore().beginBlockConnect();
+        this.disconnect(block, batch);
+        batch.commit();
+    }
+
+    /**
+     * 断开区块，按相反顺序撤销连接该区块时对UTXO池所做的变更，耗时只与区块大小相关
+     * 所有变更只写入批次，由调用方与最新区块哈希一起提交
+     *
+     * @param block 最新的区块
+     * @param batch 区块连接批次
+     */
+    @Synchronized
+    public void disconnect(Block block, BlockConnectBatch batch) {
+        BlockUndo blockUndo = blockchain.getChainStore().getBlockUndo(block.getHash());
+        if (blockUndo == null) {
+            System.out.println("Fail to disconnect block ! undo data is missing ! hash=" + block.getHash());
+            throw new RuntimeException("Fail to disconnect block ! undo data is missing ! hash=" + block.getHash());
+        }
+        UTXOUndo[] undos = blockUndo.getUndos();
+        for (int i = undos.length - 1; i >= 0; i--) {
+            UTXOUndo undo = undos[i];
+            // 恢复交易输出位置在连接区块之前的状态：被花费的交易输出放回原位，新增的交易输出被删除
+            if (undo.getPreviousOutput() == null) {
+                batch.deleteUTXO(undo.getTxId(), undo.getIndex());
+            } else {
+                batch.putUTXO(undo.getTxId(), undo.getIndex(), undo.getPreviousOutput());
+            }
+        }
+        batch.putChainstateHash(block.getPreHash());
     }
 
 }
@@ -0,0 +1,359 @@
+package com.yxz.transaction;
+
+import com.yxz.block.Block;
+import com.yxz.block.Blockchain;
+import com.yxz.store.BlockConnectBatch;
+import com.yxz.store.ChainStore;
+import com.yxz.store.MemoryChainStore;
+import com.yxz.util.SerializeUtil;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * UTXO快照，用于新节点快速启动
+ * <p>
+ * 快照文件记录导出时的最新区块以及该区块对应的全部UTXO，新节点导入后无需重放整条区块链，
+ * 直接从快照高度开始继续验证和连接新的区块。
+ * <p>
+ * 文件格式：
+ * magic(4) | version(4) | 最新区块(长度 + 序列化数据) | UTXO池的承诺值(32) | UTXO数量(8) |
+ * 每条UTXO：交易ID(长度 + 数据) 交易输出索引(4) 序列化后的交易输出(长度 + 数据) | 之前全部内容的SHA-256(32)
+ * <p>
+ * 版本2起每条UTXO对应一个交易输出，版本3起记录UTXO池的承诺值，更早版本的快照不再支持
+ */
+public class UTXOSnapshot {
+
+    /**
+     * 快照文件标识 "UTXO"
+     */
+    private static final int MAGIC = 0x5554584F;
+
+    /**
+     * 快照文件格式版本
+     */
+    private static final int VERSION = 3;
+
+    /**
+     * 导入时每个批次默认写入的UTXO数量
+     */
+    public static final int DEFAULT_LOAD_BATCH_SIZE = 10000;
+
+    /**
+     * 校验和长度
+     */
+    private static final int CHECKSUM_LENGTH = 32;
+
+    /**
+     * UTXO池承诺值长度
+     */
+    private static final int COMMITMENT_LENGTH = 32;
+
+    /**
+     * 导出最新区块对应的UTXO快照
+     *
+     * @param blockchain 区块链
+     * @param file       快照文件
+     * @return 快照对应的区块
+     */
+    public static Block export(Blockchain blockchain, File file) {
+        ChainStore chainStore = blockchain.getChainStore();
+        String lastBlockHash = chainStore.getLastBlockHash();
+        Block tip = chainStore.getBlock(lastBlockHash);
+        if (tip == null) {
+            System.out.println("Fail to export UTXO snapshot ! blockchain is empty ! ");
+            throw new RuntimeException("Fail to export UTXO snapshot ! blockchain is empty ! ");
+        }
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        try (FileOutputStream fileOut = new FileOutputStream(file);
+             DigestOutputStream digestOut = new DigestOutputStream(new BufferedOutputStream(fileOut), digest);
+             DataOutputStream out = new DataOutputStream(digestOut)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeBytes(out, SerializeUtil.serialize(tip));
+            out.write(chainStore.getUTXOCommitment());
+
+            // 逐条遍历UTXO，先统计数量再写入，不把全部UTXO读入内存
+            long[] count = {0};
+            chainStore.forEachChainstateEntry((key, utxoBytes) -> count[0]++);
+            out.writeLong(count[0]);
+            chainStore.forEachChainstateEntry((key, utxoBytes) -> {
+                try {
+                    OutPoint outPoint = OutPoint.parse(key);
+                    writeBytes(out, Hex.decodeHex(outPoint.getTxId()));
+                    out.writeInt(outPoint.getIndex());
+                    writeBytes(out, utxoBytes);
+                } catch (Exception e) {
+                    throw new RuntimeException("Fail to write UTXO into snapshot ! key=" + key, e);
+                }
+            });
+
+            // 校验和本身不参与计算
+            out.flush();
+            digestOut.on(false);
+            out.write(digest.digest());
+            System.out.printf("Export UTXO snapshot finished ! height=%d, hash=%s, utxos=%d\n",
+                    tip.getHeight(), tip.getHash(), count[0]);
+            return tip;
+        } catch (Exception e) {
+            System.out.println("Fail to export UTXO snapshot ! ");
+            throw new RuntimeException("Fail to export UTXO snapshot ! ", e);
+        }
+    }
+
+    /**
+     * 导入UTXO快照，只能导入到空的存储中，每个批次写入 DEFAULT_LOAD_BATCH_SIZE 条UTXO
+     *
+     * @param chainStore 区块链存储
+     * @param file       快照文件
+     * @return 以快照区块为最新区块的区块链
+     */
+    public static Blockchain load(ChainStore chainStore, File file) {
+        return load(chainStore, file, DEFAULT_LOAD_BATCH_SIZE);
+    }
+
+    /**
+     * 导入UTXO快照，只能导入到空的存储中
+     * <p>
+     * 先完整校验一遍文件并验证快照区块的工作量证明，快照区块必须记录merkle根，旧版本区块无法验证，不能作为快照区块。
+     * UTXO分批直接写入存储，峰值内存只与批次大小相关；全部写入后比较存储维护的承诺值与快照记录的承诺值，
+     * 一致时才在最后一个批次中写入快照区块以及最新区块哈希。
+     * 中途退出时节点仍然是空的，再次导入前先清空上次留下的UTXO、地址余额以及承诺值
+     *
+     * @param chainStore 区块链存储
+     * @param file       快照文件
+     * @param batchSize  每个批次写入的UTXO数量
+     * @return 以快照区块为最新区块的区块链
+     */
+    public static Blockchain load(ChainStore chainStore, File file, int batchSize) {
+        if (batchSize <= 0) {
+            System.out.println("Fail to load UTXO snapshot ! batch size must be positive ! batchSize=" + batchSize);
+            throw new RuntimeException("Fail to load UTXO snapshot ! batch size must be positive ! batchSize=" + batchSize);
+        }
+        if (StringUtils.isNotBlank(chainStore.getLastBlockHash())) {
+            System.out.println("Fail to load UTXO snapshot ! blockchain is not empty ! ");
+            throw new RuntimeException("Fail to load UTXO snapshot ! blockchain is not empty ! ");
+        }
+        verifyChecksum(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Block tip = readHeader(in);
+            byte[] commitment = readCommitment(in);
+            Blockchain blockchain = new Blockchain(chainStore, "");
+            if (!blockchain.validateBlock(tip)) {
+                System.out.println("Fail to load UTXO snapshot ! invalid snapshot block ! hash=" + tip.getHash());
+                throw new RuntimeException("Fail to load UTXO snapshot ! invalid snapshot block ! ");
+            }
+            chainStore.cleanChainStateBucket();
+
+            long count = in.readLong();
+            int batches = 0;
+            BlockConnectBatch batch = chainStore.beginBlockConnect();
+            for (long i = 0; i < count; i++) {
+                String txId = Hex.encodeHexString(readBytes(in));
+                int index = in.readInt();
+                batch.putUTXO(txId, index, (TXOutput) SerializeUtil.deserialize(readBytes(in)));
+                if (batch.getUTXOChangeCount() >= batchSize || i == count - 1) {
+                    batch.writeThrough();
+                    batch.commit();
+                    batch = chainStore.beginBlockConnect();
+                    batches++;
+                }
+            }
+            if (!MessageDigest.isEqual(commitment, chainStore.getUTXOCommitment())) {
+                chainStore.cleanChainStateBucket();
+                System.out.println("Fail to load UTXO snapshot ! utxo commitment mismatch ! ");
+                throw new RuntimeException("Fail to load UTXO snapshot ! utxo commitment mismatch ! ");
+            }
+
+            batch.putBlock(tip);
+            // 快照高度之前的区块不存在，按已裁剪处理
+            if (tip.getHeight() > 0) {
+                batch.putPrunedHeight(tip.getHeight() - 1);
+            }
+            batch.putLastBlockHash(tip.getHash());
+            batch.writeThrough();
+            batch.commit();
+            System.out.printf("Load UTXO snapshot finished ! height=%d, hash=%s, utxos=%d, batches=%d\n",
+                    tip.getHeight(), tip.getHash(), count, batches);
+            return new Blockchain(chainStore, tip.getHash());
+        } catch (IOException e) {
+            System.out.println("Fail to load UTXO snapshot ! ");
+            throw new RuntimeException("Fail to load UTXO snapshot ! ", e);
+        }
+    }
+
+    /**
+     * 用区块历史重新验证快照：从创世区块重放到快照高度，比较得到的UTXO以及承诺值与快照中的是否一致
+     *
+     * @param history 包含快照高度之前全部区块的区块链
+     * @param file    快照文件
+     * @return 一致返回true，历史区块缺失或者不一致返回false
+     */
+    public static boolean verifyHistory(Blockchain history, File file) {
+        verifyChecksum(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Block tip = readHeader(in);
+            byte[] commitment = readCommitment(in);
+            long prunedHeight = history.getChainStore().getPrunedHeight();
+            if (prunedHeight >= 0) {
+                System.out.printf("Fail to verify UTXO snapshot ! block bodies up to height %d are pruned ! \n", prunedHeight);
+                return false;
+            }
+
+            // 在内存中重放历史区块，沿用历史区块链的旧版本区块高度，以便验证旧版本区块
+            MemoryChainStore replayStore = new MemoryChainStore();
+            long legacyHeaderHeight = history.getChainStore().getLegacyHeaderHeight();
+            if (legacyHeaderHeight >= 0) {
+                BlockConnectBatch batch = replayStore.beginBlockConnect();
+                batch.putLegacyHeaderHeight(legacyHeaderHeight);
+                batch.commit();
+            }
+            Blockchain replay = new Blockchain(replayStore, "");
+            for (long height = 0; height <= tip.getHeight(); height++) {
+                Block block = history.getBlockByHeight(height);
+                if (block == null) {
+                    System.out.printf("Fail to verify UTXO snapshot ! block history is missing ! height=%d\n", height);
+                    return false;
+                }
+                replay.addBlock(block);
+            }
+            if (!tip.getHash().equals(replay.getLastBlockHash())) {
+                System.out.println("Fail to verify UTXO snapshot ! snapshot block is not in the history ! ");
+                return false;
+            }
+
+            if (!MessageDigest.isEqual(commitment, replay.getChainStore().getUTXOCommitment())) {
+                System.out.println("Fail to verify UTXO snapshot ! utxo commitment mismatch ! ");
+                return false;
+            }
+
+            Map<String, byte[]> replayed = replay.getChainStore().getChainstateBucket();
+            long count = in.readLong();
+            if (count != replayed.size()) {
+                System.out.printf("Fail to verify UTXO snapshot ! utxo count mismatch ! snapshot=%d, history=%d\n",
+                        count, replayed.size());
+                return false;
+            }
+            for (long i = 0; i < count; i++) {
+                String key = OutPoint.key(Hex.encodeHexString(readBytes(in)), in.readInt());
+                byte[] output = readBytes(in);
+                byte[] expected = replayed.get(key);
+                if (expected == null || !Arrays.equals(output, expected)) {
+                    System.out.printf("Fail to verify UTXO snapshot ! utxo mismatch ! key=%s\n", key);
+                    return false;
+                }
+            }
+            System.out.printf("Verify UTXO snapshot finished ! height=%d, hash=%s\n", tip.getHeight(), tip.getHash());
+            return true;
+        } catch (IOException e) {
+            System.out.println("Fail to verify UTXO snapshot ! ");
+            throw new RuntimeException("Fail to verify UTXO snapshot ! ", e);
+        }
+    }
+
+    /**
+     * 在后台线程中重新验证快照，不阻塞节点继续连接新区块
+     *
+     * @param history 包含快照高度之前全部区块的区块链
+     * @param file    快照文件
+     * @return
+     */
+    public static CompletableFuture<Boolean> verifyHistoryAsync(Blockchain history, File file) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                future.complete(verifyHistory(history, file));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, "utxo-snapshot-verifier");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    /**
+     * 校验快照文件的校验和
+     *
+     * @param file 快照文件
+     */
+    private static void verifyChecksum(File file) {
+        long bodyLength = file.length() - CHECKSUM_LENGTH;
+        if (bodyLength <= 0) {
+            System.out.println("Fail to verify UTXO snapshot checksum ! file is too short ! ");
+            throw new RuntimeException("Fail to verify UTXO snapshot checksum ! file is too short ! ");
+        }
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        try (DataInputStream in = new DataInputStream(
+                new DigestInputStream(new BufferedInputStream(new FileInputStream(file)), digest))) {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = bodyLength;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("unexpected end of snapshot file");
+                }
+                remaining -= read;
+            }
+            byte[] actual = digest.digest();
+            byte[] expected = new byte[CHECKSUM_LENGTH];
+            in.readFully(expected);
+            if (!MessageDigest.isEqual(actual, expected)) {
+                System.out.println("Fail to verify UTXO snapshot checksum ! checksum mismatch ! ");
+                throw new RuntimeException("Fail to verify UTXO snapshot checksum ! checksum mismatch ! ");
+            }
+        } catch (IOException e) {
+            System.out.println("Fail to verify UTXO snapshot checksum ! ");
+            throw new RuntimeException("Fail to verify UTXO snapshot checksum ! ", e);
+        }
+    }
+
+    /**
+     * 读取文件头，返回快照对应的区块
+     */
+    private static Block readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a UTXO snapshot file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported UTXO snapshot version " + version);
+        }
+        return (Block) SerializeUtil.deserialize(readBytes(in));
+    }
+
+    /**
+     * 读取快照记录的UTXO池承诺值
+     */
+    private static byte[] readCommitment(DataInputStream in) throws IOException {
+        byte[] commitment = new byte[COMMITMENT_LENGTH];
+        in.readFully(commitment);
+        return commitment;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,34 @@
+package com.yxz.transaction;
+
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 连接区块时对UTXO池的一次变更记录，断开区块时按相反顺序撤销
+ * <p>
+ * 每条记录对应一个交易输出位置，保存该位置在变更前的交易输出：
+ * 花费交易输出时为被花费的交易输出；新增交易输出时为被覆盖的交易输出，通常为null
+ *
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class UTXOUndo {
+
+    /**
+     * 交易ID
+     */
+    private String txId;
+
+    /**
+     * 交易输出索引
+     */
+    private int index;
+
+    /**
+     * 变更前的交易输出，null表示变更前不存在
+     */
+    private TXOutput previousOutput;
+}
@@ -1,21 +1,44 @@
 package com.yxz.util;
 
-import com.google.common.collect.Maps;
 import com.yxz.block.Block;
+import com.yxz.store.AbstractChainStore;
+import com.yxz.store.BlockConnectBatch;
+import com.yxz.store.BlockFilePosition;
+import com.yxz.store.BlockFileStore;
+import com.yxz.transaction.MuHash;
+import com.yxz.transaction.OutPoint;
 import com.yxz.transaction.TXOutput;
-import lombok.Data;
+import com.yxz.transaction.Transaction;
+import lombok.Getter;
 import lombok.SneakyThrows;
+import org.apache.commons.codec.binary.Hex;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBFactory;
+import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.WriteOptions;
 import org.iq80.leveldb.impl.Iq80DBFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-
-@Data
-public class LevelDBUtil {
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * 基于LevelDB的区块链数据存储
+ * <p>
+ * 键的布局见 AbstractChainStore，b|区块哈希 下保存的是区块在区块文件中的位置，区块本身追加写入 blocks/blkNNNNN.dat；
+ * 另外使用 v 键记录数据格式版本，打开旧版本数据时自动迁移
+ */
+@Getter
+public class LevelDBUtil extends AbstractChainStore {
 
     /**
      * 区块链数据leveldb文件
@@ -23,35 +46,68 @@ public class LevelDBUtil {
     private static final String DB_FILE = "blockchain.db";
 
     /**
-     * 区块元数据桶前缀
+     * 区块文件目录
+     */
+    private static final String BLOCK_FILE_DIR = "blocks";
+
+    /**
+     * 旧版本的区块桶键值，整个桶序列化后存放在该键下，仅用于数据迁移
      */
     private static final String BLOCKS_BUCKET_KEY = "blocks";
 
     /**
-     * 链状态桶前缀
+     * 旧版本的链状态桶键值，仅用于数据迁移
      */
     private static final String CHAINSTATE_BUCKET_KEY = "chainstate";
 
     /**
-     * 获取最新一个区块的哈希值的键值，('l', lastblockhash)
+     * 数据格式版本的键值，('v', version)
      */
-    private static final String LAST_BLOCK_KEY = "l";
+    private static final String DB_VERSION_KEY = "v";
 
+    /**
+     * 当前数据格式版本
+     * 1: 每条记录单独存储
+     * 2: 区块包含高度，并建立高度索引
+     * 3: 建立地址索引
+     * 4: 区块数据移入区块文件，LevelDB只保存区块位置
+     * 5: UTXO按交易输出位置逐条存储
+     * 6: 按地址汇总余额
+     * 7: 维护UTXO池的承诺值
+     * 8: 记录旧版本区块的最高高度
+     */
+    private static final int DB_VERSION = 8;
 
-    private volatile static LevelDBUtil instance;
+    /**
+     * 裁剪模式下保留的最近区块数量的系统属性
+     */
+    public static final String PRUNE_KEEP_BLOCKS_PROPERTY = "blockchain.prune.keepBlocks";
 
+    /**
+     * 裁剪模式下区块文件磁盘占用上限（MB）的系统属性
+     */
+    public static final String PRUNE_TARGET_MB_PROPERTY = "blockchain.prune.targetMB";
 
-    private DB db;
+    /**
+     * UTXO缓存内存上限（MB）的系统属性，0表示不使用缓存
+     */
+    public static final String UTXO_CACHE_MB_PROPERTY = "blockchain.utxoCacheMB";
 
     /**
-     * block buckets
+     * 默认的UTXO缓存内存上限（MB）
      */
-    private Map<String, byte[]> blocksBucket;
+    private static final long DEFAULT_UTXO_CACHE_MB = 16;
+
+
+    private volatile static LevelDBUtil instance;
+
+
+    private DB db;
 
     /**
-     * chainstate buckets
+     * 区块文件存储
      */
-    private Map<String, byte[]> chainstateBucket;
+    private BlockFileStore blockFileStore;
 
 
     public static LevelDBUtil getInstance() {
@@ -65,165 +121,570 @@ public class LevelDBUtil {
         return instance;
     }
 
-    @SneakyThrows
+    /**
+     * 打开存储的耗时，单位毫秒
+     */
+    private long openTimeMillis;
+
+    /**
+     * 打开另一个数据目录中的存储，与 getInstance 返回的存储互不影响，例如用其中的完整区块历史验证UTXO快照
+     *
+     * @param dataDir 包含 blockchain.db 以及 blocks 的数据目录
+     * @return
+     */
+    public static LevelDBUtil open(File dataDir) {
+        return new LevelDBUtil(new File(dataDir, DB_FILE), new File(dataDir, BLOCK_FILE_DIR));
+    }
+
     private LevelDBUtil() {
-        openDB();
-        initBlockBucket();
-        initChainStateBucket();
+        this(new File(DB_FILE), new File(BLOCK_FILE_DIR));
+    }
+
+    /**
+     * 打开存储时只读取版本号，不读取任何区块或者UTXO数据，其余数据均在使用时按需读取
+     *
+     * @param dbFile       leveldb文件
+     * @param blockFileDir 区块文件目录
+     */
+    @SneakyThrows
+    private LevelDBUtil(File dbFile, File blockFileDir) {
+        long start = System.nanoTime();
+        openDB(dbFile);
+        blockFileStore = new BlockFileStore(blockFileDir, BlockFileStore.DEFAULT_MAX_FILE_SIZE);
+        if (getDbVersion() < DB_VERSION) {
+            migrateLegacyBuckets();
+            migrateBlockHeights();
+            migrateAddressIndex();
+            migrateBlockFiles();
+            migrateOutPoints();
+            migrateBalances();
+            migrateUTXOCommitment();
+            migrateLegacyHeaderHeight();
+        }
+        setPruneKeepBlocks(Long.getLong(PRUNE_KEEP_BLOCKS_PROPERTY, 0L));
+        setPruneTargetBytes(Long.getLong(PRUNE_TARGET_MB_PROPERTY, 0L) * 1024 * 1024);
+        setUTXOCacheBytes(Long.getLong(UTXO_CACHE_MB_PROPERTY, DEFAULT_UTXO_CACHE_MB) * 1024 * 1024);
+        // 进程退出时把UTXO缓存写入存储，异常退出时重新打开后从 s 键记录的区块开始重放
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushUTXOCache, "utxo-cache-flush"));
+        openTimeMillis = (System.nanoTime() - start) / 1000000;
     }
 
     /**
      * 打开数据库
+     *
+     * @param dbFile leveldb文件
      */
-    private void openDB() {
+    private void openDB(File dbFile) {
         try {
             DBFactory factory = new Iq80DBFactory();
             Options options = new Options();
-            db = factory.open(new File(DB_FILE), options);
+            db = factory.open(dbFile, options);
         } catch (IOException e) {
             throw new RuntimeException("Fail to open db ! ", e);
         }
     }
 
     /**
-     * 初始化 blocks 数据桶
+     * 将旧版本整桶存储的数据拆分为逐条存储，只会在旧数据存在时执行一次
      */
-    private void initBlockBucket() {
-        byte[] blockBucketKey = SerializeUtil.serialize(BLOCKS_BUCKET_KEY);
-        byte[] blockBucketBytes = db.get(blockBucketKey);
-        if (blockBucketBytes != null) {
-            blocksBucket = (Map) SerializeUtil.deserialize(blockBucketBytes);
-        } else {
-            blocksBucket = Maps.newHashMap();
-            db.put(blockBucketKey, SerializeUtil.serialize(blocksBucket));
+    @SuppressWarnings("unchecked")
+    private void migrateLegacyBuckets() throws IOException {
+        byte[] blocksBucketKey = SerializeUtil.serialize(BLOCKS_BUCKET_KEY);
+        byte[] chainstateBucketKey = SerializeUtil.serialize(CHAINSTATE_BUCKET_KEY);
+        byte[] blocksBucketBytes = db.get(blocksBucketKey);
+        byte[] chainstateBucketBytes = db.get(chainstateBucketKey);
+        if (blocksBucketBytes == null && chainstateBucketBytes == null) {
+            return;
+        }
+
+        System.out.println("Start to migrate legacy buckets ! ");
+        try (WriteBatch batch = db.createWriteBatch()) {
+            if (blocksBucketBytes != null) {
+                Map<String, byte[]> blocksBucket = (Map<String, byte[]>) SerializeUtil.deserialize(blocksBucketBytes);
+                for (Map.Entry<String, byte[]> entry : blocksBucket.entrySet()) {
+                    if (LAST_BLOCK_KEY.equals(entry.getKey())) {
+                        String lastBlockHash = (String) SerializeUtil.deserialize(entry.getValue());
+                        batch.put(bytes(LAST_BLOCK_KEY), bytes(lastBlockHash));
+                    } else {
+                        batch.put(bytes(BLOCK_KEY_PREFIX + entry.getKey()), entry.getValue());
+                    }
+                }
+                batch.delete(blocksBucketKey);
+            }
+            if (chainstateBucketBytes != null) {
+                Map<String, byte[]> chainstateBucket = (Map<String, byte[]>) SerializeUtil.deserialize(chainstateBucketBytes);
+                for (Map.Entry<String, byte[]> entry : chainstateBucket.entrySet()) {
+                    batch.put(bytes(UTXO_KEY_PREFIX + entry.getKey()), entry.getValue());
+                }
+                batch.delete(chainstateBucketKey);
+            }
+            db.write(batch, new WriteOptions().sync(true));
         }
+        System.out.println("Migrate legacy buckets finished ! ");
     }
 
     /**
-     * 初始化链状态数据桶
-     *
+     * 为旧版本中不含高度的区块补充高度并建立高度索引，只会执行一次
      */
-    private void initChainStateBucket() {
-        byte[] chainstateBucketKey = SerializeUtil.serialize(CHAINSTATE_BUCKET_KEY);
-        byte[] chainstateBucketBytes = db.get(chainstateBucketKey);
-        if (chainstateBucketBytes != null) {
-            chainstateBucket = (Map) SerializeUtil.deserialize(chainstateBucketBytes);
-        } else {
-            chainstateBucket = Maps.newHashMap();
-            db.put(chainstateBucketKey, SerializeUtil.serialize(chainstateBucket));
+    private void migrateBlockHeights() throws IOException {
+        if (getDbVersion() >= 2) {
+            return;
+        }
+        try (WriteBatch batch = db.createWriteBatch()) {
+            String lastBlockHash = getLastBlockHash();
+            if (lastBlockHash.length() > 0) {
+                System.out.println("Start to migrate block heights ! ");
+                // 从最新区块往前遍历，得到从新到旧的区块列表
+                List<Block> blocks = new ArrayList<>();
+                String blockHash = lastBlockHash;
+                while (blockHash.length() > 0) {
+                    byte[] blockBytes = db.get(bytes(BLOCK_KEY_PREFIX + blockHash));
+                    if (blockBytes == null) {
+                        break;
+                    }
+                    Block block = SerializeUtil.deserializeLegacyBlock(blockBytes);
+                    blocks.add(block);
+                    blockHash = block.getPreHash();
+                }
+                for (int i = 0; i < blocks.size(); i++) {
+                    Block block = blocks.get(i);
+                    block.setHeight(blocks.size() - 1 - i);
+                    batch.put(bytes(BLOCK_KEY_PREFIX + block.getHash()), SerializeUtil.serialize(block));
+                    batch.put(bytes(HEIGHT_INDEX_KEY_PREFIX + block.getHeight()), bytes(block.getHash()));
+                }
+                System.out.println("Migrate block heights finished ! ");
+            }
+            batch.put(bytes(DB_VERSION_KEY), bytes("2"));
+            db.write(batch, new WriteOptions().sync(true));
         }
     }
 
+    /**
+     * 根据已有的UTXO数据建立地址索引，只会执行一次
+     */
+    private void migrateAddressIndex() throws IOException {
+        if (getDbVersion() >= 3) {
+            return;
+        }
+        try (WriteBatch batch = db.createWriteBatch()) {
+            forEachByPrefix(UTXO_KEY_PREFIX, (txId, utxosBytes) -> {
+                TXOutput[] utxos = (TXOutput[]) SerializeUtil.deserialize(utxosBytes);
+                for (String address : addressesOf(utxos)) {
+                    batch.put(bytes(addressIndexPrefix(address) + txId), ByteUtil.EMPTY_ARRAY);
+                }
+            });
+            batch.put(bytes(DB_VERSION_KEY), bytes("3"));
+            db.write(batch, new WriteOptions().sync(true));
+        }
+    }
 
     /**
-     * 保存最新一个区块的Hash值
-     *
-     * @param topBlockHash
+     * 将LevelDB中的区块数据按高度顺序移入区块文件，只会执行一次
      */
-    public void putLastBlockHash(String topBlockHash) {
-        blocksBucket.put(LAST_BLOCK_KEY, SerializeUtil.serialize(topBlockHash));
-        db.put(SerializeUtil.serialize(BLOCKS_BUCKET_KEY), SerializeUtil.serialize(blocksBucket));
+    private void migrateBlockFiles() throws IOException {
+        if (getDbVersion() >= 4) {
+            return;
+        }
+        try (WriteBatch batch = db.createWriteBatch()) {
+            String blockHash = getBlockHash(0);
+            if (blockHash.length() > 0) {
+                System.out.println("Start to migrate blocks into block files ! ");
+                for (long height = 0; blockHash.length() > 0; blockHash = getBlockHash(++height)) {
+                    byte[] blockBytes = db.get(bytes(BLOCK_KEY_PREFIX + blockHash));
+                    if (blockBytes == null) {
+                        break;
+                    }
+                    BlockFilePosition position = blockFileStore.append(blockBytes);
+                    batch.put(bytes(BLOCK_KEY_PREFIX + blockHash), SerializeUtil.serialize(position));
+                }
+                blockFileStore.flush();
+                System.out.println("Migrate blocks into block files finished ! ");
+            }
+            batch.put(bytes(DB_VERSION_KEY), bytes("4"));
+            db.write(batch, new WriteOptions().sync(true));
+        }
+    }
 
+    /**
+     * 将按交易保存的UTXO数组拆分为按交易输出位置保存的记录，并重建地址索引，只会执行一次
+     * <p>
+     * 旧版本花费交易输出后会压缩数组，剩余交易输出的下标不再等于交易输出索引，
+     * 此时还没有交易索引，先按高度遍历主链上的区块找到这些UTXO所属的原交易，按顺序与原交易的交易输出逐个匹配还原索引，
+     * 找不到原交易（区块已被裁剪或者来自UTXO快照）时沿用数组下标，并输出沿用下标的交易数量。
+     * 旧版本的撤销数据无法对应到交易输出位置，一并删除，这些区块不能再被断开
+     */
+    private void migrateOutPoints() throws IOException {
+        if (getDbVersion() >= 5) {
+            return;
+        }
+        try (WriteBatch batch = db.createWriteBatch()) {
+            System.out.println("Start to migrate UTXOs into out points ! ");
+            Map<String, TXOutput[]> outputsByTxId = findTransactionOutputs();
+            int[] fallbackCount = new int[1];
+            forEachByPrefix(UTXO_KEY_PREFIX, (txId, utxosBytes) -> {
+                TXOutput[] utxos = (TXOutput[]) SerializeUtil.deserialize(utxosBytes);
+                int[] indexes = outputIndexesOf(utxos, outputsByTxId.get(txId));
+                if (indexes == null) {
+                    fallbackCount[0]++;
+                    indexes = arrayIndexesOf(utxos);
+                }
+                batch.delete(bytes(UTXO_KEY_PREFIX + txId));
+                for (int i = 0; i < utxos.length; i++) {
+                    String key = OutPoint.key(txId, indexes[i]);
+                    batch.put(bytes(UTXO_KEY_PREFIX + key), SerializeUtil.serialize(utxos[i]));
+                    batch.put(bytes(addressIndexPrefix(addressOf(utxos[i])) + key), ByteUtil.EMPTY_ARRAY);
+                }
+            });
+            forEachByPrefix(ADDRESS_INDEX_KEY_PREFIX, (key, value) -> {
+                if (key.indexOf(':') < 0) {
+                    batch.delete(bytes(ADDRESS_INDEX_KEY_PREFIX + key));
+                }
+            });
+            forEachByPrefix(UNDO_KEY_PREFIX, (blockHash, value) -> batch.delete(bytes(UNDO_KEY_PREFIX + blockHash)));
+            batch.put(bytes(DB_VERSION_KEY), bytes("5"));
+            db.write(batch, new WriteOptions().sync(true));
+            System.out.println("Migrate UTXOs into out points finished ! transactions without history=" + fallbackCount[0]);
+        }
     }
 
     /**
-     * 查询最新一个区块的Hash值
+     * 根据已有的UTXO汇总每个地址的余额，只会执行一次
+     */
+    private void migrateBalances() throws IOException {
+        if (getDbVersion() >= 6) {
+            return;
+        }
+        try (WriteBatch batch = db.createWriteBatch()) {
+            System.out.println("Start to migrate address balances ! ");
+            Map<String, Long> balances = new HashMap<>();
+            forEachByPrefix(UTXO_KEY_PREFIX, (key, utxoBytes) -> {
+                TXOutput utxo = (TXOutput) SerializeUtil.deserialize(utxoBytes);
+                balances.merge(addressOf(utxo), (long) utxo.getValue(), Long::sum);
+            });
+            for (Map.Entry<String, Long> balance : balances.entrySet()) {
+                if (balance.getValue() != 0) {
+                    batch.put(bytes(BALANCE_KEY_PREFIX + balance.getKey()), bytes(String.valueOf(balance.getValue())));
+                }
+            }
+            batch.put(bytes(DB_VERSION_KEY), bytes("6"));
+            db.write(batch, new WriteOptions().sync(true));
+            System.out.println("Migrate address balances finished ! addresses=" + balances.size());
+        }
+    }
+
+    /**
+     * 根据已有的UTXO计算UTXO池的承诺值，只会执行一次，之后随UTXO的写入增量维护
+     */
+    private void migrateUTXOCommitment() throws IOException {
+        if (getDbVersion() >= 7) {
+            return;
+        }
+        try (WriteBatch batch = db.createWriteBatch()) {
+            System.out.println("Start to migrate UTXO commitment ! ");
+            MuHash commitment = new MuHash();
+            forEachByPrefix(UTXO_KEY_PREFIX, (key, utxoBytes) ->
+                    commitment.insert(commitmentElementOf(key, (TXOutput) SerializeUtil.deserialize(utxoBytes))));
+            batch.put(bytes(UTXO_COMMITMENT_KEY), commitment.toBytes());
+            batch.put(bytes(DB_VERSION_KEY), bytes("7"));
+            db.write(batch, new WriteOptions().sync(true));
+            System.out.println("Migrate UTXO commitment finished ! ");
+        }
+    }
+
+    /**
+     * 记录没有merkle根的旧版本区块的最高高度，只会执行一次
+     * 旧版本区块挖矿时的数据无法还原，只有该高度及以下的区块允许跳过区块头的重新计算
+     */
+    private void migrateLegacyHeaderHeight() throws IOException {
+        if (getDbVersion() >= 8) {
+            return;
+        }
+        try (WriteBatch batch = db.createWriteBatch()) {
+            String lastBlockHash = getLastBlockHash();
+            if (lastBlockHash.length() > 0) {
+                System.out.println("Start to migrate legacy header height ! ");
+                // 旧版本区块都在新区块之前，从最新区块往下找到第一个没有merkle根的区块
+                long legacyHeaderHeight = -1;
+                for (long height = getBlockHeader(lastBlockHash).getHeight(); height >= 0; height--) {
+                    Block header = getBlockHeader(getBlockHash(height));
+                    if (header != null && header.getMerkleRoot() == null) {
+                        legacyHeaderHeight = height;
+                        break;
+                    }
+                }
+                if (legacyHeaderHeight >= 0) {
+                    batch.put(bytes(LEGACY_HEADER_HEIGHT_KEY), bytes(String.valueOf(legacyHeaderHeight)));
+                }
+                System.out.println("Migrate legacy header height finished ! height=" + legacyHeaderHeight);
+            }
+            batch.put(bytes(DB_VERSION_KEY), bytes(String.valueOf(DB_VERSION)));
+            db.write(batch, new WriteOptions().sync(true));
+        }
+    }
+
+    /**
+     * 按高度遍历主链上的区块，查找旧版本UTXO所属的原交易的全部交易输出
+     * 只保留仍有UTXO的交易，已裁剪的区块跳过
      *
-     * @return
+     * @return 交易ID -> 原交易的交易输出
      */
-    public String getLastBlockHash() {
-        byte[] lastBlockHashBytes = blocksBucket.get(LAST_BLOCK_KEY);
-        if (lastBlockHashBytes != null) {
-            return (String) SerializeUtil.deserialize(lastBlockHashBytes);
+    private Map<String, TXOutput[]> findTransactionOutputs() {
+        Set<String> txIds = new HashSet<>();
+        forEachByPrefix(UTXO_KEY_PREFIX, (txId, utxosBytes) -> txIds.add(txId));
+        Map<String, TXOutput[]> outputsByTxId = new HashMap<>();
+        String blockHash = getBlockHash(0);
+        for (long height = 0; blockHash.length() > 0 && outputsByTxId.size() < txIds.size();
+             blockHash = getBlockHash(++height)) {
+            if (isBlockPruned(blockHash)) {
+                continue;
+            }
+            Block block = getBlock(blockHash);
+            if (block == null) {
+                break;
+            }
+            for (Transaction transaction : block.getTransactions()) {
+                String txId = Hex.encodeHexString(transaction.getTxId());
+                if (txIds.contains(txId)) {
+                    outputsByTxId.put(txId, transaction.getOutputs());
+                }
+            }
         }
-        return "";
+        return outputsByTxId;
     }
 
     /**
-     * 保存区块
+     * 还原旧版本UTXO数组中每个交易输出在原交易中的索引
      *
-     * @param block
+     * @param utxos   旧版本的UTXO数组
+     * @param outputs 原交易的全部交易输出，找不到原交易时为null
+     * @return 与UTXO数组一一对应的交易输出索引，无法还原时返回null
      */
-    public void putBlock(Block block) {
-        blocksBucket.put(block.getHash(), SerializeUtil.serialize(block));
-        db.put(SerializeUtil.serialize(BLOCKS_BUCKET_KEY), SerializeUtil.serialize(blocksBucket));
+    private int[] outputIndexesOf(TXOutput[] utxos, TXOutput[] outputs) {
+        if (outputs == null) {
+            return null;
+        }
+        int[] indexes = new int[utxos.length];
+        int outIndex = 0;
+        for (int i = 0; i < utxos.length; i++) {
+            while (outIndex < outputs.length && !outputs[outIndex].equals(utxos[i])) {
+                outIndex++;
+            }
+            if (outIndex == outputs.length) {
+                // 与原交易不一致
+                return null;
+            }
+            indexes[i] = outIndex++;
+        }
+        return indexes;
     }
 
     /**
-     * 查询区块
+     * 沿用数组下标作为交易输出索引
      *
-     * @param blockHash
+     * @param utxos 旧版本的UTXO数组
      * @return
      */
-    public Block getBlock(String blockHash) {
-        return (Block) SerializeUtil.deserialize(blocksBucket.get(blockHash));
+    private int[] arrayIndexesOf(TXOutput[] utxos) {
+        int[] indexes = new int[utxos.length];
+        for (int i = 0; i < utxos.length; i++) {
+            indexes[i] = i;
+        }
+        return indexes;
     }
 
-
     /**
-     * 清空chainstate bucket
+     * 查询数据格式版本，没有版本记录时根据是否存在区块数据判断
+     *
+     * @return
      */
-    public void cleanChainStateBucket() {
-        try {
-            chainstateBucket.clear();
-        } catch (Exception e) {
-            System.out.println("Fail to clear chainstate bucket ! ");
-            throw new RuntimeException("Fail to clear chainstate bucket ! ", e);
+    private int getDbVersion() {
+        byte[] versionBytes = db.get(bytes(DB_VERSION_KEY));
+        if (versionBytes != null) {
+            return Integer.parseInt(string(versionBytes));
+        }
+        return db.get(bytes(LAST_BLOCK_KEY)) != null ? 1 : 0;
+    }
+
+    @Override
+    protected byte[] get(String key) {
+        return db.get(bytes(key));
+    }
+
+    @Override
+    protected void forEachByPrefix(String keyPrefix, BiConsumer<String, byte[]> consumer) {
+        try (DBIterator iterator = db.iterator()) {
+            byte[] prefix = bytes(keyPrefix);
+            for (iterator.seek(prefix); iterator.hasNext(); ) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                if (!startsWith(entry.getKey(), prefix)) {
+                    break;
+                }
+                String suffix = new String(entry.getKey(), prefix.length, entry.getKey().length - prefix.length, StandardCharsets.UTF_8);
+                consumer.accept(suffix, entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to scan db ! prefix=" + keyPrefix, e);
+        }
+    }
+
+    @Override
+    protected void deleteByPrefix(String keyPrefix) {
+        try (DBIterator iterator = db.iterator(); WriteBatch batch = db.createWriteBatch()) {
+            byte[] prefix = bytes(keyPrefix);
+            for (iterator.seek(prefix); iterator.hasNext(); ) {
+                byte[] key = iterator.next().getKey();
+                if (!startsWith(key, prefix)) {
+                    break;
+                }
+                batch.delete(key);
+            }
+            db.write(batch);
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to delete from db ! prefix=" + keyPrefix, e);
         }
     }
 
     /**
-     * 保存UTXO数据
+     * 基于LevelDB的WriteBatch原子写入
      *
-     * @param key   交易ID
-     * @param utxos UTXOs
+     * @param pending 待写入的数据，值为null表示删除
+     * @param sync    是否同步刷盘
      */
-    public void putUTXOs(String key, TXOutput[] utxos) {
-        try {
-            chainstateBucket.put(key, SerializeUtil.serialize(utxos));
-            db.put(SerializeUtil.serialize(CHAINSTATE_BUCKET_KEY), SerializeUtil.serialize(chainstateBucket));
-        } catch (Exception e) {
-            System.out.println("Fail to put UTXOs into chainstate bucket ! key=" + key);
-            throw new RuntimeException("Fail to put UTXOs into chainstate bucket ! key=" + key, e);
+    @Override
+    protected void write(Map<String, byte[]> pending, boolean sync) {
+        try (WriteBatch batch = db.createWriteBatch()) {
+            // 区块数据必须先于引用它的位置落盘
+            if (sync) {
+                blockFileStore.flush();
+            }
+            for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+                if (entry.getValue() == null) {
+                    batch.delete(bytes(entry.getKey()));
+                } else {
+                    batch.put(bytes(entry.getKey()), entry.getValue());
+                }
+            }
+            db.write(batch, new WriteOptions().sync(sync));
+        } catch (IOException e) {
+            throw new RuntimeException("Fail to write batch into db ! ", e);
         }
     }
 
+    /**
+     * 区块数据立即追加到区块文件，LevelDB中只保存区块位置
+     *
+     * @param blockBytes 序列化后的区块
+     * @return
+     */
+    @Override
+    protected byte[] storeBlockBytes(byte[] blockBytes) {
+        BlockFilePosition position = blockFileStore.append(blockBytes);
+        return SerializeUtil.serialize(position);
+    }
+
+    @Override
+    protected byte[] loadBlockBytes(byte[] storedValue) {
+        BlockFilePosition position = (BlockFilePosition) SerializeUtil.deserialize(storedValue);
+        return blockFileStore.read(position);
+    }
 
     /**
-     * 查询UTXO数据
+     * 以区块文件为单位裁剪旧区块
+     * <p>
+     * 从最早未裁剪的区块开始，按文件依次判断：文件中的区块全部在保留范围之外，并且区块文件总大小仍超过目标上限时，
+     * 先在同一批次中把文件内的区块替换为区块头并更新已裁剪高度，提交后再删除文件。
+     * 正在追加写入的文件不会被裁剪。
      *
-     * @param txId 交易ID
+     * @param tipHeight 最新区块高度
      */
-    public TXOutput[] getUTXOs(String txId) {
-        byte[] utxosByte = chainstateBucket.get(txId);
-        if (utxosByte != null) {
-            return (TXOutput[]) SerializeUtil.deserialize(utxosByte);
+    @Override
+    public synchronized void prune(long tipHeight) {
+        if (!isPruneMode()) {
+            return;
+        }
+        long totalBytes = blockFileStore.totalSize();
+        long height = getPrunedHeight() + 1;
+        while (getPruneTargetBytes() <= 0 || totalBytes > getPruneTargetBytes()) {
+            BlockFilePosition position = positionOf(height);
+            if (position == null || position.getFileIndex() >= blockFileStore.getCurrentFileIndex()) {
+                return;
+            }
+            // 找出同一个文件中的全部区块
+            int fileIndex = position.getFileIndex();
+            List<Block> blocks = new ArrayList<>();
+            for (long h = height; position != null && position.getFileIndex() == fileIndex; position = positionOf(++h)) {
+                blocks.add(getBlock(getBlockHash(h)));
+            }
+            long maxHeight = height + blocks.size() - 1;
+            if (getPruneKeepBlocks() > 0 && maxHeight > tipHeight - getPruneKeepBlocks()) {
+                return;
+            }
+
+            // 磁盘上的UTXO池可能需要从被裁剪的区块开始重放，裁剪前先写入缓存
+            flushUTXOCache();
+            BlockConnectBatch batch = beginBlockConnect();
+            for (Block block : blocks) {
+                batch.pruneBlock(block);
+            }
+            batch.putPrunedHeight(maxHeight);
+            batch.commit();
+            for (Block block : blocks) {
+                getBlockCache().remove(block.getHash());
+            }
+            long fileSize = blockFileStore.sizeOf(fileIndex);
+            blockFileStore.delete(fileIndex);
+            totalBytes -= fileSize;
+            System.out.printf("Prune block file finished ! fileIndex=%d, height=%d-%d\n", fileIndex, height, maxHeight);
+            height = maxHeight + 1;
         }
-        return null;
     }
 
+    /**
+     * 查询区块在区块文件中的位置
+     *
+     * @param height 区块高度
+     * @return 区块不存在或者已被裁剪时返回null
+     */
+    private BlockFilePosition positionOf(long height) {
+        String blockHash = getBlockHash(height);
+        if (blockHash.length() == 0) {
+            return null;
+        }
+        byte[] storedValue = get(BLOCK_KEY_PREFIX + blockHash);
+        if (storedValue == null) {
+            return null;
+        }
+        return (BlockFilePosition) SerializeUtil.deserialize(storedValue);
+    }
 
     /**
-     * 删除UTXO数据
+     * 判断键是否以指定前缀开头
      *
-     * @param key 交易ID
+     * @param key
+     * @param prefix
+     * @return
      */
-    public void deleteUTXOs(String key) {
-        try {
-            chainstateBucket.remove(key);
-            db.put(SerializeUtil.serialize(CHAINSTATE_BUCKET_KEY), SerializeUtil.serialize(chainstateBucket));
-        } catch (Exception e) {
-            System.out.println("Fail to delete UTXOs by key ! key=" + key);
-            throw new RuntimeException("Fail to delete UTXOs by key ! key=" + key, e);
+    private static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
         }
+        return true;
     }
 
 
     /**
-     * 关闭数据库
+     * 关闭数据库，关闭前先把UTXO缓存写入存储
      */
+    @Override
     public void closeDB() {
         try {
+            flushUTXOCache();
+            blockFileStore.close();
             db.close();
         } catch (Exception e) {
             throw new RuntimeException("Fail to close db ! ", e);
@@ -1,25 +1,136 @@
 package com.yxz.util;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+import com.esotericsoftware.kryo.util.Pool;
+import com.yxz.block.Block;
+import com.yxz.store.BlockFilePosition;
+import com.yxz.transaction.BlockUndo;
+import com.yxz.transaction.TXInput;
+import com.yxz.transaction.TXLocation;
+import com.yxz.transaction.TXOutput;
+import com.yxz.transaction.Transaction;
+import com.yxz.transaction.UTXOUndo;
 
+import java.lang.reflect.Array;
+
+/**
+ * 序列化工具
+ * <p>
+ * Kryo实例不是线程安全的，创建代价也较高，因此通过对象池复用。
+ * 常用的类型都预先注册并使用手写的序列化器，序列化结果中只写入注册编号，不再写入完整类名。
+ * 旧版本未注册类型的数据以类名标记开头，读取时自动切换到兼容模式。
+ */
 public class SerializeUtil {
 
     /**
-     * 反序列化
+     * 注册编号起始值，避开Kryo默认注册的基本类型
+     */
+    private static final int REGISTRATION_ID_BASE = 100;
+
+    /**
+     * 旧版本数据的首字节，表示后面写入的是类名（Kryo中 NAME + 2）
+     */
+    private static final byte LEGACY_CLASS_NAME_MARKER = 1;
+
+    /**
+     * 区块序列化格式版本
+     */
+    private static final int BLOCK_FORMAT_VERSION = 2;
+
+    /**
+     * 不含merkle根的区块序列化格式版本
+     */
+    private static final int BLOCK_FORMAT_VERSION_WITHOUT_MERKLE_ROOT = 1;
+
+    /**
+     * 预先注册类型的Kryo对象池
+     */
+    private static final Pool<Kryo> KRYO_POOL = new Pool<Kryo>(true, false) {
+        @Override
+        protected Kryo create() {
+            return newKryo();
+        }
+    };
+
+    /**
+     * 读取旧版本数据的Kryo对象池
+     */
+    private static final Pool<Kryo> LEGACY_KRYO_POOL = new Pool<Kryo>(true, false) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            //旧版本数据没有注册类型
+            kryo.setRegistrationRequired(false);
+            //旧版本区块中没有merkle根字段
+            FieldSerializer<Block> blockSerializer = new FieldSerializer<>(kryo, Block.class);
+            blockSerializer.removeField("merkleRoot");
+            kryo.register(Block.class, blockSerializer);
+            return kryo;
+        }
+    };
+
+    /**
+     * 创建预先注册类型的Kryo实例，注册顺序决定注册编号，只能在末尾追加
+     *
+     * @return
+     */
+    private static Kryo newKryo() {
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(true);
+        int id = REGISTRATION_ID_BASE;
+        kryo.register(Block.class, new BlockSerializer(), id++);
+        kryo.register(Transaction.class, new TransactionSerializer(), id++);
+        kryo.register(TXInput.class, new TXInputSerializer(), id++);
+        kryo.register(TXOutput.class, new TXOutputSerializer(), id++);
+        kryo.register(Transaction[].class, new ArraySerializer<>(Transaction.class), id++);
+        kryo.register(TXInput[].class, new ArraySerializer<>(TXInput.class), id++);
+        kryo.register(TXOutput[].class, new ArraySerializer<>(TXOutput.class), id++);
+        kryo.register(TXLocation.class, new TXLocationSerializer(), id++);
+        kryo.register(BlockFilePosition.class, new BlockFilePositionSerializer(), id++);
+        kryo.register(byte[].class, id++);
+        kryo.register(UTXOUndo.class, new UTXOUndoSerializer(), id++);
+        kryo.register(UTXOUndo[].class, new ArraySerializer<>(UTXOUndo.class), id++);
+        kryo.register(BlockUndo.class, new BlockUndoSerializer(), id++);
+        return kryo;
+    }
+
+    /**
+     * 反序列化，兼容旧版本未注册类型的数据
      *
      * @param bytes 对象对应的byte数组
      * @return
      */
     public static Object deserialize(byte[] bytes) {
+        Pool<Kryo> pool = bytes.length > 0 && bytes[0] == LEGACY_CLASS_NAME_MARKER ? LEGACY_KRYO_POOL : KRYO_POOL;
+        Kryo kryo = pool.obtain();
+        try (Input input = new Input(bytes)) {
+            return kryo.readClassAndObject(input);
+        } finally {
+            pool.free(kryo);
+        }
+    }
+
+    /**
+     * 反序列化旧版本的区块，旧版本区块中没有高度和merkle根字段
+     *
+     * @param bytes 区块对应的byte数组
+     * @return
+     */
+    public static Block deserializeLegacyBlock(byte[] bytes) {
         Input input = new Input(bytes);
         Kryo kryo = new Kryo();
-        //新版本的kryo避免Class is not registered错误
         kryo.setRegistrationRequired(false);
-        Object obj = kryo.readClassAndObject(input);
+        FieldSerializer<Block> blockSerializer = new FieldSerializer<>(kryo, Block.class);
+        blockSerializer.removeField("height");
+        blockSerializer.removeField("merkleRoot");
+        kryo.register(Block.class, blockSerializer);
+        Block block = (Block) kryo.readClassAndObject(input);
         input.close();
-        return obj;
+        return block;
     }
 
     /**
@@ -29,13 +140,200 @@ public class SerializeUtil {
      * @return
      */
     public static byte[] serialize(Object object) {
-        Output output = new Output(4096, -1);
-        Kryo kryo = new Kryo();
-        //新版本的kryo避免Class is not registered错误
-        kryo.setRegistrationRequired(false);
-        kryo.writeClassAndObject(output, object);
-        byte[] bytes = output.toBytes();
-        output.close();
-        return bytes;
+        Kryo kryo = KRYO_POOL.obtain();
+        try (Output output = new Output(256, -1)) {
+            kryo.writeClassAndObject(output, object);
+            return output.toBytes();
+        } finally {
+            KRYO_POOL.free(kryo);
+        }
+    }
+
+    /**
+     * 写入可以为null的字节数组，长度加1写入，0表示null
+     */
+    private static void writeBytes(Output output, byte[] bytes) {
+        if (bytes == null) {
+            output.writeVarInt(0, true);
+            return;
+        }
+        output.writeVarInt(bytes.length + 1, true);
+        output.writeBytes(bytes);
+    }
+
+    private static byte[] readBytes(Input input) {
+        int length = input.readVarInt(true);
+        if (length == 0) {
+            return null;
+        }
+        return input.readBytes(length - 1);
+    }
+
+    /**
+     * 区块序列化器，首先写入格式版本，便于之后增加字段
+     */
+    private static class BlockSerializer extends Serializer<Block> {
+        @Override
+        public void write(Kryo kryo, Output output, Block block) {
+            output.writeVarInt(BLOCK_FORMAT_VERSION, true);
+            output.writeString(block.getHash());
+            output.writeString(block.getPreHash());
+            kryo.writeObjectOrNull(output, block.getTransactions(), Transaction[].class);
+            output.writeLong(block.getTimeStamp());
+            output.writeVarLong(block.getNonce(), true);
+            output.writeVarLong(block.getHeight(), true);
+            writeBytes(output, block.getMerkleRoot());
+        }
+
+        @Override
+        public Block read(Kryo kryo, Input input, Class<? extends Block> type) {
+            int version = input.readVarInt(true);
+            if (version != BLOCK_FORMAT_VERSION && version != BLOCK_FORMAT_VERSION_WITHOUT_MERKLE_ROOT) {
+                throw new RuntimeException("Fail to deserialize block ! unknown format version=" + version);
+            }
+            Block block = new Block();
+            block.setHash(input.readString());
+            block.setPreHash(input.readString());
+            block.setTransactions(kryo.readObjectOrNull(input, Transaction[].class));
+            block.setTimeStamp(input.readLong());
+            block.setNonce(input.readVarLong(true));
+            block.setHeight(input.readVarLong(true));
+            if (version != BLOCK_FORMAT_VERSION_WITHOUT_MERKLE_ROOT) {
+                block.setMerkleRoot(readBytes(input));
+            }
+            return block;
+        }
+    }
+
+    private static class TransactionSerializer extends Serializer<Transaction> {
+        @Override
+        public void write(Kryo kryo, Output output, Transaction tx) {
+            writeBytes(output, tx.getTxId());
+            kryo.writeObjectOrNull(output, tx.getInputs(), TXInput[].class);
+            kryo.writeObjectOrNull(output, tx.getOutputs(), TXOutput[].class);
+        }
+
+        @Override
+        public Transaction read(Kryo kryo, Input input, Class<? extends Transaction> type) {
+            byte[] txId = readBytes(input);
+            TXInput[] inputs = kryo.readObjectOrNull(input, TXInput[].class);
+            TXOutput[] outputs = kryo.readObjectOrNull(input, TXOutput[].class);
+            return new Transaction(txId, inputs, outputs);
+        }
+    }
+
+    private static class TXInputSerializer extends Serializer<TXInput> {
+        @Override
+        public void write(Kryo kryo, Output output, TXInput txInput) {
+            writeBytes(output, txInput.getTxId());
+            output.writeVarInt(txInput.getTxOutputIndex(), false);
+            writeBytes(output, txInput.getSignature());
+            writeBytes(output, txInput.getPublicKey());
+        }
+
+        @Override
+        public TXInput read(Kryo kryo, Input input, Class<? extends TXInput> type) {
+            return new TXInput(readBytes(input), input.readVarInt(false), readBytes(input), readBytes(input));
+        }
+    }
+
+    private static class TXOutputSerializer extends Serializer<TXOutput> {
+        @Override
+        public void write(Kryo kryo, Output output, TXOutput txOutput) {
+            output.writeVarInt(txOutput.getValue(), true);
+            writeBytes(output, txOutput.getPublicKeyHash());
+        }
+
+        @Override
+        public TXOutput read(Kryo kryo, Input input, Class<? extends TXOutput> type) {
+            return new TXOutput(input.readVarInt(true), readBytes(input));
+        }
+    }
+
+    private static class TXLocationSerializer extends Serializer<TXLocation> {
+        @Override
+        public void write(Kryo kryo, Output output, TXLocation location) {
+            output.writeString(location.getBlockHash());
+            output.writeVarInt(location.getIndex(), true);
+        }
+
+        @Override
+        public TXLocation read(Kryo kryo, Input input, Class<? extends TXLocation> type) {
+            return new TXLocation(input.readString(), input.readVarInt(true));
+        }
+    }
+
+    private static class BlockFilePositionSerializer extends Serializer<BlockFilePosition> {
+        @Override
+        public void write(Kryo kryo, Output output, BlockFilePosition position) {
+            output.writeVarInt(position.getFileIndex(), true);
+            output.writeVarLong(position.getOffset(), true);
+            output.writeVarInt(position.getLength(), true);
+        }
+
+        @Override
+        public BlockFilePosition read(Kryo kryo, Input input, Class<? extends BlockFilePosition> type) {
+            return new BlockFilePosition(input.readVarInt(true), input.readVarLong(true), input.readVarInt(true));
+        }
+    }
+
+    private static class UTXOUndoSerializer extends Serializer<UTXOUndo> {
+        @Override
+        public void write(Kryo kryo, Output output, UTXOUndo undo) {
+            output.writeString(undo.getTxId());
+            output.writeVarInt(undo.getIndex(), true);
+            kryo.writeObjectOrNull(output, undo.getPreviousOutput(), TXOutput.class);
+        }
+
+        @Override
+        public UTXOUndo read(Kryo kryo, Input input, Class<? extends UTXOUndo> type) {
+            String txId = input.readString();
+            int index = input.readVarInt(true);
+            return new UTXOUndo(txId, index, kryo.readObjectOrNull(input, TXOutput.class));
+        }
+    }
+
+    private static class BlockUndoSerializer extends Serializer<BlockUndo> {
+        @Override
+        public void write(Kryo kryo, Output output, BlockUndo blockUndo) {
+            output.writeString(blockUndo.getBlockHash());
+            kryo.writeObjectOrNull(output, blockUndo.getUndos(), UTXOUndo[].class);
+        }
+
+        @Override
+        public BlockUndo read(Kryo kryo, Input input, Class<? extends BlockUndo> type) {
+            return new BlockUndo(input.readString(), kryo.readObjectOrNull(input, UTXOUndo[].class));
+        }
+    }
+
+    /**
+     * 元素类型固定的数组序列化器，元素不写入类型信息，元素可以为null
+     */
+    private static class ArraySerializer<T> extends Serializer<T[]> {
+
+        private final Class<T> componentType;
+
+        private ArraySerializer(Class<T> componentType) {
+            this.componentType = componentType;
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, T[] array) {
+            output.writeVarInt(array.length, true);
+            for (T element : array) {
+                kryo.writeObjectOrNull(output, element, componentType);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T[] read(Kryo kryo, Input input, Class<? extends T[]> type) {
+            int length = input.readVarInt(true);
+            T[] array = (T[]) Array.newInstance(componentType, length);
+            for (int i = 0; i < length; i++) {
+                array[i] = kryo.readObjectOrNull(input, componentType);
+            }
+            return array;
+        }
     }
 }